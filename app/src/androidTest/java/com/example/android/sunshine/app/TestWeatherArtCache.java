@@ -0,0 +1,90 @@
+package com.example.android.sunshine.app;
+
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+/*
+    Checks that weather art is loaded once per condition and size, and then served from memory or,
+    once memory has been cleared, from disk.  The Sunshine art pack is used throughout, so the art
+    comes from the app's resources and nothing here needs a network.
+ */
+public class TestWeatherArtCache extends AndroidTestCase {
+
+    private static final int CLEAR_WEATHER_ID = 800;
+    private static final int RAIN_WEATHER_ID = 500;
+    private static final int SHOWER_RAIN_WEATHER_ID = 521;
+    private static final int SIZE = 64;
+
+    private WeatherArtCache mCache;
+    private SharedPreferences mPrefs;
+    private String mArtPackKey;
+    // The art pack chosen before the test, put back afterwards; null if none was
+    private String mSavedArtPack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mArtPackKey = mContext.getString(R.string.pref_art_pack_key);
+        mSavedArtPack = mPrefs.getString(mArtPackKey, null);
+        mPrefs.edit()
+                .putString(mArtPackKey, mContext.getString(R.string.pref_art_pack_sunshine))
+                .commit();
+        mCache = WeatherArtCache.getInstance(mContext);
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (mSavedArtPack == null) {
+            editor.remove(mArtPackKey);
+        } else {
+            editor.putString(mArtPackKey, mSavedArtPack);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    public void testArtIsLoadedOncePerSize() throws InterruptedException {
+        int loads = mCache.getLoadCount();
+
+        Bitmap art = mCache.getArt(CLEAR_WEATHER_ID, SIZE, SIZE);
+        assertNotNull(art);
+        assertTrue("Error: the art does not fit the size asked for",
+                art.getWidth() <= SIZE && art.getHeight() <= SIZE);
+        assertSame(art, mCache.getArt(CLEAR_WEATHER_ID, SIZE, SIZE));
+        assertEquals(loads + 1, mCache.getLoadCount());
+
+        // Another size is another entry
+        mCache.getArt(CLEAR_WEATHER_ID, SIZE / 2, SIZE / 2);
+        assertEquals(loads + 2, mCache.getLoadCount());
+
+        // Conditions that share art share its entries
+        mCache.getArt(RAIN_WEATHER_ID, SIZE, SIZE);
+        assertEquals(loads + 3, mCache.getLoadCount());
+        assertSame(mCache.getArt(RAIN_WEATHER_ID, SIZE, SIZE),
+                mCache.getArt(SHOWER_RAIN_WEATHER_ID, SIZE, SIZE));
+        assertEquals(loads + 3, mCache.getLoadCount());
+    }
+
+    public void testArtOutlivesTheMemoryCache() throws InterruptedException {
+        Bitmap art = mCache.getArt(CLEAR_WEATHER_ID, SIZE, SIZE);
+        int loads = mCache.getLoadCount();
+
+        mCache.evictMemory();
+        Bitmap fromDisk = mCache.getArt(CLEAR_WEATHER_ID, SIZE, SIZE);
+
+        assertNotSame(art, fromDisk);
+        assertEquals(art.getWidth(), fromDisk.getWidth());
+        assertEquals(art.getHeight(), fromDisk.getHeight());
+        assertEquals("Error: the art was loaded again instead of read from disk",
+                loads, mCache.getLoadCount());
+    }
+
+    public void testUnknownConditionHasNoArt() throws InterruptedException {
+        assertNull(mCache.getArt(-1, SIZE, SIZE));
+    }
+}
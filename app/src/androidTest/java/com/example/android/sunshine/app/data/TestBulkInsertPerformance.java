@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares the per-row cost of inserting weather one SQLiteDatabase.insert at a time against
+    the compiled WeatherInsertStatement.  Both run inside a single transaction, the way
+    WeatherProvider.bulkInsert uses them.  Timings are written to logcat under LOG_TAG.
+ */
+public class TestBulkInsertPerformance extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertPerformance.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private WeatherDbHelper mDbHelper;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mDbHelper = new WeatherDbHelper(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testInsert14Rows() {
+        compareInsertPaths(14);
+    }
+
+    public void testInsert100Rows() {
+        compareInsertPaths(100);
+    }
+
+    public void testInsert10000Rows() {
+        compareInsertPaths(10000);
+    }
+
+    private void compareInsertPaths(int rowCount) {
+        ContentValues[] values = createWeatherValues(rowCount);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        long contentValuesNanos = insertWithContentValues(db, values);
+        assertEquals("Error: ContentValues path did not insert every row",
+                rowCount, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        db.delete(WeatherEntry.TABLE_NAME, null, null);
+
+        long statementNanos = insertWithStatement(db, values);
+        assertEquals("Error: compiled statement path did not insert every row",
+                rowCount, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+
+        Log.i(LOG_TAG, rowCount + " rows: ContentValues " + (contentValuesNanos / rowCount)
+                + " ns/row, compiled statement " + (statementNanos / rowCount) + " ns/row");
+    }
+
+    private static long insertWithContentValues(SQLiteDatabase db, ContentValues[] values) {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, value) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long insertWithStatement(SQLiteDatabase db, ContentValues[] values) {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        WeatherDbHelper.WeatherInsertStatement statement =
+                new WeatherDbHelper.WeatherInsertStatement(db);
+        try {
+            for (ContentValues value : values) {
+                assertTrue(statement.insert(value) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private ContentValues[] createWeatherValues(int rowCount) {
+        ContentValues[] values = new ContentValues[rowCount];
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < rowCount; i++, date += DAY_IN_MILLIS) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(mLocationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, date);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 10);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Measures how long provider reads take while a large bulkInsert is running on another
+    thread, the way the forecast list and widgets read while the sync adapter writes.
+    Latencies are written to logcat under LOG_TAG.
+ */
+public class TestDbConcurrency extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbConcurrency.class.getSimpleName();
+
+    private static final int ROWS_TO_WRITE = 10000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testWriteAheadLoggingEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertTrue("Error: weather.db is not using write-ahead logging",
+                db.isWriteAheadLoggingEnabled());
+        dbHelper.close();
+    }
+
+    public void testReadersDuringBulkInsert() throws InterruptedException {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // Something for the readers to find
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(locationRowId));
+
+        final ContentValues[] values = new ContentValues[ROWS_TO_WRITE];
+        for (int i = 0; i < ROWS_TO_WRITE; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + (i + 1) * DAY_IN_MILLIS);
+        }
+
+        final long[] writeNanos = new long[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+                writeNanos[0] = System.nanoTime() - start;
+            }
+        });
+
+        Uri readUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        int reads = 0;
+        long totalReadNanos = 0;
+        long maxReadNanos = 0;
+
+        writer.start();
+        while (writer.isAlive()) {
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(readUri,
+                    new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+            assertNotNull(cursor);
+            // The query only runs once the cursor is moved
+            assertTrue("Error: reader saw an empty forecast during the write", cursor.moveToFirst());
+            cursor.close();
+            long readNanos = System.nanoTime() - start;
+
+            reads++;
+            totalReadNanos += readNanos;
+            maxReadNanos = Math.max(maxReadNanos, readNanos);
+        }
+        writer.join();
+
+        Log.i(LOG_TAG, "bulkInsert of " + ROWS_TO_WRITE + " rows took " + writeNanos[0] / 1000000
+                + " ms; " + reads + " reads ran alongside it, average "
+                + (reads == 0 ? 0 : totalReadNanos / reads / 1000) + " us, max "
+                + maxReadNanos / 1000 + " us");
+
+        // With a rollback journal the first read waits out the whole write transaction
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && reads > 1) {
+            assertTrue("Error: a reader was blocked for the whole bulkInsert",
+                    maxReadNanos < writeNanos[0]);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Builds databases in the schema of older versions, opens them with the current
+    WeatherDbHelper and checks that the upgrade kept every location and forecast row.
+
+    The old schemas are written out literally on purpose: they describe what is on users'
+    devices, so they must not change when WeatherContract or WeatherDbHelper do.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    private static final int WEATHER_ROWS = 14;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // Versions 1 and 2
+    private static final String SQL_CREATE_LOCATION_TABLE_V1 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL  );";
+
+    // Version 3 adds the HTTP validators
+    private static final String SQL_CREATE_LOCATION_TABLE_V3 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL, " +
+            "etag TEXT, " +
+            "last_modified TEXT  );";
+
+    // Versions 1 to 3
+    private static final String SQL_CREATE_WEATHER_TABLE_V1 = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    public void testUpgradeFromVersion1() {
+        createOldDatabase(1, SQL_CREATE_LOCATION_TABLE_V1, SQL_CREATE_WEATHER_TABLE_V1);
+        SQLiteDatabase db = openCurrentDatabase();
+
+        assertRowsKept(db);
+        assertColumnExists(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_ETAG);
+        assertColumnExists(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_LAST_MODIFIED);
+        assertColumnExists(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_SAVED_AT);
+        assertIndexExists(db, WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        assertColumnExists(db, SyncTraceEntry.TABLE_NAME, SyncTraceEntry.COLUMN_OUTCOME);
+        assertColumnExists(db, SyncTraceEntry.TABLE_NAME, SyncTraceEntry.COLUMN_STARTED_AT);
+        assertIndexExists(db, WeatherDbHelper.LOCATION_SAVED_AT_INDEX);
+        assertIndexExists(db, WeatherDbHelper.SYNC_TRACE_SYNC_ID_INDEX);
+        db.close();
+    }
+
+    public void testUpgradeFromVersion3() {
+        createOldDatabase(3, SQL_CREATE_LOCATION_TABLE_V3, SQL_CREATE_WEATHER_TABLE_V1);
+        SQLiteDatabase db = openCurrentDatabase();
+
+        assertRowsKept(db);
+        assertIndexExists(db, WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        assertColumnExists(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_SAVED_AT);
+        assertIndexExists(db, WeatherDbHelper.LOCATION_SAVED_AT_INDEX);
+        db.close();
+    }
+
+    public void testUpgradedDatabaseMatchesNewDatabase() {
+        createOldDatabase(1, SQL_CREATE_LOCATION_TABLE_V1, SQL_CREATE_WEATHER_TABLE_V1);
+        SQLiteDatabase upgraded = openCurrentDatabase();
+        String upgradedColumns = describeColumns(upgraded);
+        upgraded.close();
+
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        SQLiteDatabase created = openCurrentDatabase();
+        assertEquals("Error: an upgraded database has different columns than a new one",
+                describeColumns(created), upgradedColumns);
+        created.close();
+    }
+
+    private void createOldDatabase(int version, String createLocation, String createWeather) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        db.execSQL(createLocation);
+        db.execSQL(createWeather);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put("location_setting", TestUtilities.TEST_LOCATION);
+        locationValues.put("city_name", "North Pole");
+        locationValues.put("coord_lat", 64.7488);
+        locationValues.put("coord_long", -147.353);
+        long locationRowId = db.insert("location", null, locationValues);
+        assertTrue("Error: Failure to insert location into version " + version + " database",
+                locationRowId != -1);
+
+        for (int i = 0; i < WEATHER_ROWS; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put("location_id", locationRowId);
+            weatherValues.put("date", TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            weatherValues.put("short_desc", "Asteroids");
+            weatherValues.put("weather_id", 321);
+            weatherValues.put("min", 65);
+            weatherValues.put("max", 75);
+            weatherValues.put("humidity", 1.2);
+            weatherValues.put("pressure", 1.3);
+            weatherValues.put("wind", 5.5);
+            weatherValues.put("degrees", 1.1);
+            assertTrue("Error: Failure to insert weather into version " + version + " database",
+                    db.insert("weather", null, weatherValues) != -1);
+        }
+
+        db.setVersion(version);
+        db.close();
+    }
+
+    private SQLiteDatabase openCurrentDatabase() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        assertEquals("Error: database was not upgraded to the current version",
+                WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        return db;
+    }
+
+    private static void assertRowsKept(SQLiteDatabase db) {
+        assertEquals("Error: locations were lost in the upgrade",
+                1, DatabaseUtils.queryNumEntries(db, LocationEntry.TABLE_NAME));
+        assertEquals("Error: forecasts were lost in the upgrade",
+                WEATHER_ROWS, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+    }
+
+    private static void assertColumnExists(SQLiteDatabase db, String table, String column) {
+        assertTrue("Error: " + table + " has no column " + column + " after the upgrade",
+                describeColumns(db, table).contains(" " + column + " "));
+    }
+
+    private static void assertIndexExists(SQLiteDatabase db, String index) {
+        assertEquals("Error: index " + index + " missing after the upgrade", 1,
+                DatabaseUtils.longForQuery(db,
+                        "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ?",
+                        new String[]{index}));
+    }
+
+    private static String describeColumns(SQLiteDatabase db) {
+        return describeColumns(db, LocationEntry.TABLE_NAME)
+                + describeColumns(db, WeatherEntry.TABLE_NAME)
+                + describeColumns(db, SyncTraceEntry.TABLE_NAME);
+    }
+
+    private static String describeColumns(SQLiteDatabase db, String table) {
+        StringBuilder description = new StringBuilder(table).append(":");
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        int nameIndex = c.getColumnIndex("name");
+        int typeIndex = c.getColumnIndex("type");
+        while (c.moveToNext()) {
+            description.append(" ").append(c.getString(nameIndex))
+                    .append(" ").append(c.getString(typeIndex)).append(";");
+        }
+        c.close();
+        return description.toString();
+    }
+}
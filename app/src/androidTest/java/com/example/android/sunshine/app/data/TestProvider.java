@@ -16,6 +16,8 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
@@ -28,7 +30,11 @@ import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+import java.util.ArrayList;
 
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
@@ -512,4 +518,166 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // The sync adapter writes a forecast as one batch of per-day inserts plus a delete.  Every
+    // day should be written the first time and left alone when the same forecast comes back.
+    public void testApplyBatch() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues values : weatherValues) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)})
+                .build());
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertFalse("Error: day " + i + " was not written by the batch",
+                    WeatherEntry.isUnchangedUri(results[i].uri));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testApplyBatch.  Error validating WeatherEntry " + i,
+                    cursor, weatherValues[i]);
+        }
+        cursor.close();
+
+        // The same forecast again changes nothing
+        results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertTrue("Error: an unchanged forecast was written again",
+                    WeatherEntry.isUnchangedUri(results[i].uri));
+        }
+        assertEquals("Error: the delete removed days it should have kept",
+                0, results[BULK_INSERT_RECORDS_TO_INSERT].count.intValue());
+    }
+
+    // A sync inserts its location at the start of every batch, so inserting a location that is
+    // already stored has to hand back the existing row rather than fail or add a second one.
+    public void testInsertExistingLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri firstUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        Uri secondUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+
+        assertEquals("Error: inserting a stored location returned a different row",
+                ContentUris.parseId(firstUri), ContentUris.parseId(secondUri));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: inserting a stored location added a second row", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    // weather/* queries look the location's id up in a cache, which must not hand out the id of
+    // a location that has since been deleted and inserted again.
+    public void testLocationIdCacheFollowsDeletes() {
+        long firstLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(firstLocationRowId));
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        deleteAllRecordsFromProvider();
+
+        // Force a different _id for the location the second time around
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "other");
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation);
+        Uri secondLocationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long secondLocationRowId = ContentUris.parseId(secondLocationUri);
+        assertTrue(secondLocationRowId != firstLocationRowId);
+
+        ContentValues weatherValues = TestUtilities.createWeatherValues(secondLocationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        TestUtilities.validateCursor("testLocationIdCacheFollowsDeletes. Error validating weather " +
+                "for the re-inserted location.", cursor, weatherValues);
+    }
+
+    // The sync trace is a ring buffer: writing the stages of one sync more than it holds drops
+    // the oldest sync, stage and all, and keeps the rest.
+    public void testSyncTraceRingBuffer() {
+        mContext.getContentResolver().delete(SyncTraceEntry.CONTENT_URI, null, null);
+        int syncs = WeatherProvider.MAX_TRACED_SYNCS + 1;
+        for (int sync = 0; sync < syncs; sync++) {
+            ContentValues[] stages = new ContentValues[2];
+            for (int stage = 0; stage < stages.length; stage++) {
+                stages[stage] = new ContentValues();
+                stages[stage].put(SyncTraceEntry.COLUMN_SYNC_ID, TestUtilities.TEST_DATE + sync);
+                stages[stage].put(SyncTraceEntry.COLUMN_STAGE, stage == 0 ? "sync" : "store");
+                stages[stage].put(SyncTraceEntry.COLUMN_START_OFFSET, stage);
+                stages[stage].put(SyncTraceEntry.COLUMN_DURATION, 10);
+                stages[stage].put(SyncTraceEntry.COLUMN_ROWS, 14);
+                stages[stage].put(SyncTraceEntry.COLUMN_OUTCOME, "ok");
+            }
+            assertEquals(stages.length, mContext.getContentResolver().bulkInsert(
+                    SyncTraceEntry.CONTENT_URI, stages));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncTraceEntry.CONTENT_URI,
+                new String[]{SyncTraceEntry.COLUMN_SYNC_ID}, null, null,
+                SyncTraceEntry.COLUMN_SYNC_ID + " ASC");
+        assertEquals("Error: the sync trace kept the wrong number of stages",
+                WeatherProvider.MAX_TRACED_SYNCS * 2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the sync trace did not drop the oldest sync",
+                TestUtilities.TEST_DATE + 1, cursor.getLong(0));
+        cursor.close();
+    }
+
+    // The saved set is bounded: marking a location saved drops whatever falls beyond the newest
+    // MAX_SAVED_LOCATIONS from it, leaving the rows themselves in place.
+    public void testExpiredSavedLocationsLeaveTheSet() {
+        int locations = SunshineSyncAdapter.MAX_SAVED_LOCATIONS + 2;
+        for (int i = 0; i < locations; i++) {
+            ContentValues values = TestUtilities.createNorthPoleLocationValues();
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, TestUtilities.TEST_LOCATION + i);
+            values.put(LocationEntry.COLUMN_SAVED_AT, TestUtilities.TEST_DATE + i);
+            mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        }
+
+        ContentValues expired = new ContentValues();
+        expired.putNull(LocationEntry.COLUMN_SAVED_AT);
+        assertEquals(2, mContext.getContentResolver().update(LocationEntry.CONTENT_URI, expired,
+                SunshineSyncAdapter.EXPIRED_SAVED_LOCATIONS_SELECTION, null));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_SAVED_AT},
+                LocationEntry.COLUMN_SAVED_AT + " IS NOT NULL", null,
+                LocationEntry.COLUMN_SAVED_AT + " ASC");
+        assertEquals(SunshineSyncAdapter.MAX_SAVED_LOCATIONS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest saved locations were not the ones dropped",
+                TestUtilities.TEST_DATE + 2, cursor.getLong(0));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: dropping a location from the saved set deleted it",
+                locations, cursor.getCount());
+        cursor.close();
+    }
 }
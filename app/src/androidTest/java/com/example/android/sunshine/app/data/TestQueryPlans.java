@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.SyncTraceActivity;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+/*
+    Runs EXPLAIN QUERY PLAN for the queries each WeatherProvider route is asked, built by the
+    provider's own buildRouteQuery from the selections and sort orders its callers use, and fails
+    if SQLite would answer any of them by scanning a whole table.  Every route the UriMatcher
+    matches is checked; a route added without a check here fails testEveryRoutePlan.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "99705";
+    private static final long TEST_LOCATION_ID = 1;
+    private static final long TEST_DATE = 1419033600L;  // December 20th, 2014
+
+    // What the forecast list, widgets, Muzei and the wearable project from the weather/* routes
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // The order they all read them in
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+    private UriMatcher mMatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+        mMatcher = WeatherProvider.buildUriMatcher();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testEveryRoutePlan() {
+        for (int route : WeatherProvider.ROUTES) {
+            switch (route) {
+                case WeatherProvider.WEATHER:
+                    // The sync adapter deletes the days before the ones it just fetched
+                    checkPlan(route, WeatherEntry.CONTENT_URI, new String[]{WeatherEntry._ID},
+                            SunshineSyncAdapter.OLD_WEATHER_SELECTION,
+                            new String[]{Long.toString(TEST_DATE)}, null);
+                    break;
+                case WeatherProvider.WEATHER_WITH_LOCATION:
+                    checkPlan(route, WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                            FORECAST_COLUMNS, null, null, SORT_ORDER);
+                    // With ?date=, as the forecast list, widgets and Muzei ask it
+                    checkPlan(route,
+                            WeatherEntry.buildWeatherLocationWithStartDate(TEST_LOCATION, TEST_DATE),
+                            FORECAST_COLUMNS, null, null, SORT_ORDER);
+                    break;
+                case WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE:
+                    checkPlan(route,
+                            WeatherEntry.buildWeatherLocationWithDate(TEST_LOCATION, TEST_DATE),
+                            FORECAST_COLUMNS, null, null, null);
+                    break;
+                case WeatherProvider.LOCATION:
+                    // The provider looks up a location's id by its setting when it is not cached
+                    checkPlan(route, LocationEntry.CONTENT_URI, new String[]{LocationEntry._ID},
+                            WeatherProvider.sLocationSettingSelection,
+                            new String[]{TEST_LOCATION}, null);
+                    // Each sync reads the saved locations to fetch alongside the preferred one
+                    checkPlan(route, LocationEntry.CONTENT_URI,
+                            new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                            SunshineSyncAdapter.SAVED_LOCATIONS_SELECTION,
+                            new String[]{TEST_LOCATION},
+                            SunshineSyncAdapter.SAVED_LOCATIONS_SORT_ORDER);
+                    break;
+                case WeatherProvider.SYNC_TRACE:
+                    // The trace screen lists every stage, newest sync first
+                    checkPlan(route, SyncTraceEntry.CONTENT_URI,
+                            new String[]{SyncTraceEntry._ID, SyncTraceEntry.COLUMN_SYNC_ID},
+                            null, null, SyncTraceActivity.SYNC_TRACE_SORT_ORDER);
+                    break;
+                default:
+                    fail("Error: route " + route + " has no query plan check; add one here");
+            }
+        }
+    }
+
+    private void checkPlan(int route, Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        assertEquals("Error: " + uri + " did not match the route its query plan is checked for",
+                route, mMatcher.match(uri));
+        WeatherProvider.RouteQuery query = WeatherProvider.buildRouteQuery(route, uri,
+                TEST_LOCATION_ID, selection, selectionArgs);
+        assertNoTableScan(uri.toString(), query.buildSql(projection, sortOrder),
+                query.selectionArgs);
+    }
+
+    private void assertNoTableScan(String route, String sql, String[] selectionArgs) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            assertTrue("Error: no query plan returned for " + route, plan.moveToFirst());
+            int detailIndex = plan.getColumnIndex("detail");
+            do {
+                String detail = plan.getString(detailIndex);
+                Log.d(LOG_TAG, route + ": " + detail);
+                // Older SQLite versions say "SCAN TABLE weather", newer ones "SCAN weather"
+                if (!detail.startsWith("SCAN ")) {
+                    continue;
+                }
+                assertFalse("Error: " + route + " scans a whole table: " + detail + "\n" + sql,
+                        detail.contains(WeatherEntry.TABLE_NAME)
+                                || detail.contains(LocationEntry.TABLE_NAME));
+                // The trace screen reads every row, but should walk them in sync order off the
+                // index rather than scanning and sorting the table
+                assertFalse("Error: " + route + " scans a whole table: " + detail + "\n" + sql,
+                        detail.contains(SyncTraceEntry.TABLE_NAME) && !detail.contains(" USING "));
+            } while (plan.moveToNext());
+        } finally {
+            plan.close();
+        }
+    }
+}
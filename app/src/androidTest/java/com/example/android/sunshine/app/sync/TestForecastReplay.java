@@ -0,0 +1,246 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.StubForecastServer;
+
+/*
+    Runs the whole sync, from the forecast request through the provider, against a
+    StubForecastServer replaying a recorded OpenWeatherMap payload.  Nothing here needs a network
+    or an API key, so it also runs on an offline build machine.  Timings are written to logcat
+    under LOG_TAG.
+ */
+public class TestForecastReplay extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastReplay.class.getSimpleName();
+
+    private static final String LOCATION = "94043";
+    private static final String PAYLOAD = "mountain_view_7day.json";
+    private static final int PAYLOAD_DAYS = 7;
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private StubForecastServer mServer;
+    private byte[] mPayload;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.SyncTraceEntry.CONTENT_URI, null, null);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit()
+                .putString(mContext.getString(R.string.pref_location_key), LOCATION)
+                .remove(mContext.getString(R.string.pref_location_latitude))
+                .remove(mContext.getString(R.string.pref_location_longitude))
+                .remove(mContext.getString(R.string.pref_sync_failures_key))
+                .remove(mContext.getString(R.string.pref_invalid_location_key))
+                .remove(mContext.getString(R.string.pref_last_sync_success_key))
+                .commit();
+        Utility.resetLocationStatus(mContext);
+
+        mPayload = StubForecastServer.loadPayload(PAYLOAD);
+        mServer = new StubForecastServer();
+        mServer.start();
+        SunshineSyncAdapter.setForecastEndpoint(mServer.getEndpoint());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunshineSyncAdapter.setForecastEndpoint(null);
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private SyncResult sync() {
+        SyncResult syncResult = new SyncResult();
+        new SunshineSyncAdapter(mContext, false).onPerformSync(null, new Bundle(),
+                mContext.getString(R.string.content_authority), null, syncResult);
+        return syncResult;
+    }
+
+    private int countStoredDays() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testReplayedForecastIsStored() throws InterruptedException {
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload));
+
+        SyncResult syncResult = sync();
+
+        StubForecastServer.RecordedRequest request = mServer.takeRequest(REQUEST_TIMEOUT_MILLIS);
+        assertNotNull("Error: the sync never reached the stub server", request);
+        assertTrue("Error: the request did not ask for the preferred location",
+                request.target.startsWith(StubForecastServer.FORECAST_PATH)
+                        && request.target.contains("q=" + LOCATION));
+        assertFalse(syncResult.hasError());
+        assertEquals(PAYLOAD_DAYS, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testStagesAreTraced() {
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload));
+
+        sync();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncTraceEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncTraceEntry.COLUMN_BYTES,
+                        WeatherContract.SyncTraceEntry.COLUMN_ROWS,
+                        WeatherContract.SyncTraceEntry.COLUMN_OUTCOME},
+                WeatherContract.SyncTraceEntry.COLUMN_STAGE + " = ?",
+                new String[]{SyncTrace.STAGE_DOWNLOAD}, null);
+        assertTrue("Error: the download was not traced", cursor.moveToFirst());
+        assertEquals(mPayload.length, cursor.getLong(0));
+        assertEquals(PAYLOAD_DAYS, cursor.getInt(1));
+        assertEquals(SyncTrace.OUTCOME_OK, cursor.getString(2));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(WeatherContract.SyncTraceEntry.CONTENT_URI,
+                null, WeatherContract.SyncTraceEntry.COLUMN_STAGE + " IN (?, ?, ?)",
+                new String[]{SyncTrace.STAGE_SYNC, SyncTrace.STAGE_CONNECT, SyncTrace.STAGE_STORE},
+                null);
+        assertEquals("Error: the sync, connect and store stages were not all traced",
+                3, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testSyncsAreNumberedInOrder() {
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload));
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload));
+
+        sync();
+        sync();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncTraceEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncTraceEntry.COLUMN_SYNC_ID,
+                        WeatherContract.SyncTraceEntry.COLUMN_STARTED_AT},
+                WeatherContract.SyncTraceEntry.COLUMN_STAGE + " = ?",
+                new String[]{SyncTrace.STAGE_SYNC},
+                WeatherContract.SyncTraceEntry._ID + " ASC");
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        long firstSyncId = cursor.getLong(0);
+        assertTrue("Error: the sync's start time was not traced", cursor.getLong(1) > 0);
+        cursor.moveToNext();
+        assertTrue("Error: a later sync did not get a greater id", cursor.getLong(0) > firstSyncId);
+        cursor.close();
+    }
+
+        public void testValidatorsAreReplayed() throws InterruptedException {
+        String eTag = "\"mountain-view-1\"";
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload)
+                .withHeader("ETag", eTag));
+        mServer.enqueue(new StubForecastServer.Response(304, null));
+
+        sync();
+        mServer.takeRequest(REQUEST_TIMEOUT_MILLIS);
+        SyncResult syncResult = sync();
+
+        StubForecastServer.RecordedRequest request = mServer.takeRequest(REQUEST_TIMEOUT_MILLIS);
+        assertEquals(eTag, request.getHeader("If-None-Match"));
+        assertFalse(syncResult.hasError());
+        assertEquals("Error: a 304 should leave the stored forecast alone",
+                PAYLOAD_DAYS, countStoredDays());
+    }
+
+    public void testServerErrorIsRetried() {
+        mServer.enqueue(new StubForecastServer.Response(503, null));
+
+        SyncResult syncResult = sync();
+
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertTrue(syncResult.delayUntil > 0);
+        assertEquals(0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    public void testThrottlingHonoursRetryAfter() {
+        long retryAfter = 60 * 60;
+        mServer.enqueue(new StubForecastServer.Response(429, null)
+                .withHeader("Retry-After", Long.toString(retryAfter)));
+
+        long before = System.currentTimeMillis() / 1000;
+        SyncResult syncResult = sync();
+
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertTrue("Error: the retry was scheduled before the server asked",
+                syncResult.delayUntil >= before + retryAfter);
+    }
+
+    public void testUnknownLocationIsNotRetried() {
+        mServer.enqueue(new StubForecastServer.Response(404, null));
+
+        SyncResult syncResult = sync();
+
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                Utility.getLocationStatus(mContext));
+
+        // Until the user picks another location, the server is not asked again
+        int requests = mServer.getRequestCount();
+        syncResult = sync();
+        assertEquals(requests, mServer.getRequestCount());
+        assertFalse(syncResult.hasError());
+
+        // ... and the sync that did not ask still finishes, traced as skipped, without counting
+        // the location as fresh
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncTraceEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncTraceEntry.COLUMN_OUTCOME},
+                WeatherContract.SyncTraceEntry.COLUMN_STAGE + " = ?",
+                new String[]{SyncTrace.STAGE_SYNC},
+                WeatherContract.SyncTraceEntry.COLUMN_SYNC_ID + " DESC");
+        assertTrue("Error: the second sync was not traced", cursor.moveToFirst());
+        assertEquals(SyncTrace.OUTCOME_SKIPPED, cursor.getString(0));
+        cursor.close();
+        assertFalse("Error: a location that was not fetched was counted as fresh",
+                PreferenceManager.getDefaultSharedPreferences(mContext).contains(
+                        mContext.getString(R.string.pref_last_sync_success_key)));
+    }
+
+    public void testTruncatedPayloadStoresNothing() {
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload)
+                .truncatedAt(mPayload.length / 2));
+
+        SyncResult syncResult = sync();
+
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertEquals(0, countStoredDays());
+    }
+
+    public void testSlowThrottledServer() {
+        long latency = 250;
+        int bytesPerSecond = 4 * 1024;
+        mServer.enqueue(new StubForecastServer.Response(200, mPayload)
+                .withLatency(latency)
+                .withThrottle(bytesPerSecond));
+
+        long start = System.nanoTime();
+        SyncResult syncResult = sync();
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertFalse(syncResult.hasError());
+        assertEquals(PAYLOAD_DAYS, countStoredDays());
+        assertTrue(elapsedMillis >= latency);
+        Log.i(LOG_TAG, "Sync of " + mPayload.length + " bytes with " + latency + " ms latency at "
+                + bytesPerSecond + " bytes/s took " + elapsedMillis + " ms");
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Runs jobs on a SyncFanOut and checks that they do not hold each other up, that each is held to
+    its own timeout, and that its outcome ends up in the sync trace.
+ */
+public class TestSyncFanOut extends AndroidTestCase {
+
+    private static final long WAIT_MILLIS = 2000;
+    private static final long LONG_TIMEOUT_MILLIS = 10 * 1000;
+
+    private SyncTrace mTrace;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherContract.SyncTraceEntry.CONTENT_URI, null, null);
+        mTrace = new SyncTrace(mContext);
+    }
+
+    private SyncFanOut newFanOut(int threads, int queueCapacity) {
+        return new SyncFanOut(mContext.getContentResolver(), threads, queueCapacity);
+    }
+
+    /**
+     * A job that waits until the latch is released.
+     */
+    private static SyncFanOut.Job blockUntil(final CountDownLatch release) {
+        return new SyncFanOut.Job() {
+            @Override
+            public void run() throws InterruptedException {
+                release.await();
+            }
+        };
+    }
+
+    /**
+     * @return the outcome stored for a stage, waiting a while for the job to store it
+     */
+    private String waitForOutcome(String stage) {
+        long deadline = SystemClock.elapsedRealtime() + WAIT_MILLIS;
+        do {
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherContract.SyncTraceEntry.CONTENT_URI,
+                    new String[]{WeatherContract.SyncTraceEntry.COLUMN_OUTCOME},
+                    WeatherContract.SyncTraceEntry.COLUMN_STAGE + " = ?",
+                    new String[]{stage}, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    return cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            SystemClock.sleep(50);
+        } while (SystemClock.elapsedRealtime() < deadline);
+        return null;
+    }
+
+    public void testSlowJobDoesNotDelayOthers() throws InterruptedException {
+        SyncFanOut fanOut = newFanOut(2, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastRan = new CountDownLatch(1);
+
+        fanOut.submit("slow", LONG_TIMEOUT_MILLIS, blockUntil(release), mTrace);
+        fanOut.submit("fast", LONG_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+            @Override
+            public void run() {
+                fastRan.countDown();
+            }
+        }, mTrace);
+
+        assertTrue("Error: the fast job waited for the slow one",
+                fastRan.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(SyncTrace.OUTCOME_OK, waitForOutcome("fast"));
+        release.countDown();
+        assertEquals(SyncTrace.OUTCOME_OK, waitForOutcome("slow"));
+    }
+
+    public void testOverrunningJobIsInterrupted() throws InterruptedException {
+        SyncFanOut fanOut = newFanOut(1, 4);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        fanOut.submit("overrun", 200, new SyncFanOut.Job() {
+            @Override
+            public void run() throws InterruptedException {
+                try {
+                    Thread.sleep(LONG_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+        }, mTrace);
+
+        assertTrue("Error: the job ran past its timeout",
+                interrupted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(SyncTrace.OUTCOME_TIMEOUT, waitForOutcome("overrun"));
+    }
+
+    public void testNewerJobReplacesOlder() throws InterruptedException {
+        SyncFanOut fanOut = newFanOut(1, 4);
+        final CountDownLatch olderStarted = new CountDownLatch(1);
+        final CountDownLatch newerRan = new CountDownLatch(1);
+
+        fanOut.submit("wearable", LONG_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+            @Override
+            public void run() throws InterruptedException {
+                olderStarted.countDown();
+                Thread.sleep(LONG_TIMEOUT_MILLIS);
+            }
+        }, mTrace);
+        assertTrue(olderStarted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        fanOut.submit("wearable", LONG_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+            @Override
+            public void run() {
+                newerRan.countDown();
+            }
+        }, mTrace);
+
+        // The older job is interrupted, which frees the only thread for the newer one
+        assertTrue(newerRan.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        Cursor cursor = null;
+        long deadline = SystemClock.elapsedRealtime() + WAIT_MILLIS;
+        do {
+            if (cursor != null) {
+                cursor.close();
+                SystemClock.sleep(50);
+            }
+            cursor = mContext.getContentResolver().query(
+                    WeatherContract.SyncTraceEntry.CONTENT_URI,
+                    new String[]{WeatherContract.SyncTraceEntry.COLUMN_OUTCOME}, null, null,
+                    WeatherContract.SyncTraceEntry.COLUMN_START_OFFSET + " ASC, "
+                            + WeatherContract.SyncTraceEntry._ID + " ASC");
+        } while (cursor.getCount() < 2 && SystemClock.elapsedRealtime() < deadline);
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(SyncTrace.OUTCOME_CANCELLED, cursor.getString(0));
+        cursor.moveToNext();
+        assertEquals(SyncTrace.OUTCOME_OK, cursor.getString(0));
+        cursor.close();
+    }
+
+    public void testQueuedJobReplacedBeforeStartingIsTraced() throws InterruptedException {
+        SyncFanOut fanOut = newFanOut(1, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean olderRan = new AtomicBoolean();
+
+        fanOut.submit("running", LONG_TIMEOUT_MILLIS, blockUntil(release), mTrace);
+        fanOut.submit("wearable", LONG_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+            @Override
+            public void run() {
+                olderRan.set(true);
+            }
+        }, mTrace);
+        SyncTrace newerTrace = new SyncTrace(mContext);
+        fanOut.submit("wearable", LONG_TIMEOUT_MILLIS, blockUntil(release), newerTrace);
+
+        // The older job never got the thread, but its sync still shows it was cancelled
+        assertEquals(SyncTrace.OUTCOME_CANCELLED, waitForOutcome("wearable"));
+        release.countDown();
+        assertEquals(SyncTrace.OUTCOME_OK, waitForOutcome("running"));
+        assertFalse(olderRan.get());
+    }
+
+        public void testJobsAreDroppedWhenTheQueueIsFull() throws InterruptedException {
+        SyncFanOut fanOut = newFanOut(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean droppedRan = new AtomicBoolean();
+
+        fanOut.submit("running", LONG_TIMEOUT_MILLIS, blockUntil(release), mTrace);
+        fanOut.submit("queued", LONG_TIMEOUT_MILLIS, blockUntil(release), mTrace);
+        fanOut.submit("dropped", LONG_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+            @Override
+            public void run() {
+                droppedRan.set(true);
+            }
+        }, mTrace);
+
+        assertEquals(SyncTrace.OUTCOME_DROPPED, waitForOutcome("dropped"));
+        release.countDown();
+        assertEquals(SyncTrace.OUTCOME_OK, waitForOutcome("queued"));
+        assertFalse(droppedRan.get());
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks which sync requests SyncRequestCoalescer lets through.  The clock is pinned, so the
+    times passed in are exactly how long ago the last request and the last success happened.
+ */
+public class TestSyncRequestCoalescer extends AndroidTestCase {
+
+    private static final long WINDOW = 1000 * 60;
+    private static final long FRESH = 1000 * 60 * 30;
+    private static final long NOW = 1419033600000L;
+
+    private static SyncRequestCoalescer coalescer() {
+        return new SyncRequestCoalescer(new SyncScheduler.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return NOW;
+            }
+        }, WINDOW, FRESH);
+    }
+
+    public void testFirstRequestSyncs() {
+        assertEquals(SyncRequestCoalescer.DECISION_SYNC, coalescer().decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, 0, 0, false));
+    }
+
+    public void testBurstIsMerged() {
+        SyncRequestCoalescer coalescer = coalescer();
+        assertEquals(SyncRequestCoalescer.DECISION_MERGED, coalescer.decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, NOW - WINDOW / 2, 0, false));
+        assertEquals(SyncRequestCoalescer.DECISION_SYNC, coalescer.decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, NOW - WINDOW, 0, false));
+    }
+
+    public void testSyncInFlightIsMerged() {
+        assertEquals(SyncRequestCoalescer.DECISION_MERGED, coalescer().decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, 0, 0, true));
+    }
+
+    public void testFreshForecastIsDropped() {
+        SyncRequestCoalescer coalescer = coalescer();
+        assertEquals(SyncRequestCoalescer.DECISION_FRESH, coalescer.decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, NOW - FRESH, NOW - FRESH / 2, false));
+        assertEquals(SyncRequestCoalescer.DECISION_SYNC, coalescer.decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, NOW - FRESH, NOW - FRESH, false));
+    }
+
+    public void testLocationChangeAlwaysSyncs() {
+        assertEquals(SyncRequestCoalescer.DECISION_SYNC, coalescer().decide(
+                SyncRequestCoalescer.TRIGGER_LOCATION_CHANGED, NOW, NOW, true));
+    }
+
+    public void testFutureTimesAreIgnored() {
+        // The user set the clock back; an old request must not hold syncs back for hours
+        assertEquals(SyncRequestCoalescer.DECISION_SYNC, coalescer().decide(
+                SyncRequestCoalescer.TRIGGER_WEARABLE, NOW + FRESH, NOW + FRESH, false));
+    }
+
+    public void testDecisionsAreCounted() {
+        SyncRequestCoalescer coalescer = coalescer();
+        coalescer.decide(SyncRequestCoalescer.TRIGGER_WEARABLE, 0, 0, false);
+        coalescer.decide(SyncRequestCoalescer.TRIGGER_WEARABLE, NOW, 0, false);
+        coalescer.decide(SyncRequestCoalescer.TRIGGER_WEARABLE, NOW, 0, false);
+        coalescer.decide(SyncRequestCoalescer.TRIGGER_WEARABLE, 0, NOW, false);
+
+        assertEquals(1, coalescer.getCount(SyncRequestCoalescer.DECISION_SYNC));
+        assertEquals(2, coalescer.getCount(SyncRequestCoalescer.DECISION_MERGED));
+        assertEquals(1, coalescer.getCount(SyncRequestCoalescer.DECISION_FRESH));
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/*
+    Checks how SyncRetryPolicy classifies failures and spaces out retries.  The jitter comes from
+    a Random that always returns the same value, so the backoffs are exact.
+ */
+public class TestSyncRetryPolicy extends AndroidTestCase {
+
+    private static SyncRetryPolicy policyWithJitter(final double jitter) {
+        return new SyncRetryPolicy(new Random() {
+            @Override
+            public double nextDouble() {
+                return jitter;
+            }
+        });
+    }
+
+    public void testClassifyHttpStatus() {
+        assertEquals(SyncRetryPolicy.FAILURE_NONE, SyncRetryPolicy.classifyHttpStatus(200));
+        assertEquals(SyncRetryPolicy.FAILURE_NOT_FOUND, SyncRetryPolicy.classifyHttpStatus(404));
+        assertEquals(SyncRetryPolicy.FAILURE_THROTTLED, SyncRetryPolicy.classifyHttpStatus(429));
+        assertEquals(SyncRetryPolicy.FAILURE_SERVER, SyncRetryPolicy.classifyHttpStatus(500));
+        assertEquals(SyncRetryPolicy.FAILURE_SERVER, SyncRetryPolicy.classifyHttpStatus(503));
+        assertEquals(SyncRetryPolicy.FAILURE_CLIENT, SyncRetryPolicy.classifyHttpStatus(401));
+    }
+
+    public void testLocationStatus() {
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                SyncRetryPolicy.getLocationStatus(SyncRetryPolicy.FAILURE_NOT_FOUND));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID,
+                SyncRetryPolicy.getLocationStatus(SyncRetryPolicy.FAILURE_MALFORMED));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                SyncRetryPolicy.getLocationStatus(SyncRetryPolicy.FAILURE_TIMEOUT));
+    }
+
+    public void testPermanentFailuresAreNotRetried() {
+        SyncRetryPolicy policy = policyWithJitter(0);
+        assertFalse(policy.shouldRetry(SyncRetryPolicy.FAILURE_NOT_FOUND, 1));
+        assertFalse(policy.shouldRetry(SyncRetryPolicy.FAILURE_CLIENT, 1));
+        assertTrue(policy.shouldRetry(SyncRetryPolicy.FAILURE_DNS, 100));
+        assertTrue(policy.shouldRetry(SyncRetryPolicy.FAILURE_SERVER, 100));
+    }
+
+    public void testMalformedGivesUp() {
+        SyncRetryPolicy policy = policyWithJitter(0);
+        assertTrue(policy.shouldRetry(SyncRetryPolicy.FAILURE_MALFORMED, 1));
+        assertFalse(policy.shouldRetry(SyncRetryPolicy.FAILURE_MALFORMED,
+                SyncRetryPolicy.MAX_MALFORMED_ATTEMPTS));
+    }
+
+    public void testBackoffDoubles() {
+        // With the most jitter possible the full backoff is used
+        SyncRetryPolicy policy = policyWithJitter(1);
+        long base = SyncRetryPolicy.SERVER_BACKOFF;
+        assertEquals(base, policy.getBackoffSeconds(SyncRetryPolicy.FAILURE_SERVER, 1, 0));
+        assertEquals(2 * base, policy.getBackoffSeconds(SyncRetryPolicy.FAILURE_SERVER, 2, 0));
+        assertEquals(4 * base, policy.getBackoffSeconds(SyncRetryPolicy.FAILURE_SERVER, 3, 0));
+    }
+
+    public void testBackoffJitter() {
+        long base = SyncRetryPolicy.NETWORK_BACKOFF;
+        assertEquals(base / 2, policyWithJitter(0).getBackoffSeconds(SyncRetryPolicy.FAILURE_DNS, 1, 0));
+        assertEquals(base * 3 / 4,
+                policyWithJitter(0.5).getBackoffSeconds(SyncRetryPolicy.FAILURE_DNS, 1, 0));
+    }
+
+    public void testBackoffIsCapped() {
+        SyncRetryPolicy policy = policyWithJitter(1);
+        assertEquals(SyncRetryPolicy.MAX_BACKOFF,
+                policy.getBackoffSeconds(SyncRetryPolicy.FAILURE_TIMEOUT, 1000, 0));
+        assertEquals(SyncRetryPolicy.MAX_BACKOFF,
+                policy.getBackoffSeconds(SyncRetryPolicy.FAILURE_THROTTLED, 1,
+                        SyncRetryPolicy.MAX_BACKOFF * 10));
+    }
+
+    public void testRetryAfterIsHonoured() {
+        SyncRetryPolicy policy = policyWithJitter(0);
+        long retryAfter = SyncRetryPolicy.THROTTLED_BACKOFF * 3;
+        assertEquals(retryAfter,
+                policy.getBackoffSeconds(SyncRetryPolicy.FAILURE_THROTTLED, 1, retryAfter));
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.TimeZone;
+
+/*
+    Checks the intervals SyncScheduler picks.  The clock is pinned to fixed times of day in UTC,
+    so every result here is exact and does not depend on when or where the tests run.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final int BASE = 60 * 60 * 3;
+    private static final int MIN = 60 * 60;
+    private static final int MAX = 60 * 60 * 12;
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+    // Sat, 20 Dec 2014 00:00:00 UTC
+    private static final long MIDNIGHT = 1419033600000L;
+    private static final long THREE_AM = MIDNIGHT + 3 * HOUR_IN_MILLIS;
+    private static final long SEVEN_AM = MIDNIGHT + 7 * HOUR_IN_MILLIS;
+    private static final long TWO_PM = MIDNIGHT + 14 * HOUR_IN_MILLIS;
+    private static final long ELEVEN_PM = MIDNIGHT + 23 * HOUR_IN_MILLIS;
+
+    private static SyncScheduler schedulerAt(final long time) {
+        return new SyncScheduler(new SyncScheduler.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return time;
+            }
+        }, TimeZone.getTimeZone("UTC"), BASE, MIN, MAX);
+    }
+
+    // Half the forecast changed, a widget is showing it, on battery: the base interval,
+    // shortened only for the widget
+    private static SyncScheduler.Conditions averageConditions() {
+        SyncScheduler.Conditions conditions = new SyncScheduler.Conditions();
+        conditions.volatility = 0.5f;
+        conditions.widgetsActive = true;
+        return conditions;
+    }
+
+    public void testAfternoonAverage() {
+        assertEquals(Math.round(BASE * SyncScheduler.ACTIVE_SURFACE_FACTOR),
+                schedulerAt(TWO_PM).getNextInterval(averageConditions()));
+    }
+
+    public void testVolatilityShortensInterval() {
+        SyncScheduler scheduler = schedulerAt(TWO_PM);
+        SyncScheduler.Conditions calm = averageConditions();
+        calm.volatility = 0f;
+        SyncScheduler.Conditions stormy = averageConditions();
+        stormy.volatility = 1f;
+
+        assertTrue("Error: a forecast that keeps changing should be synced sooner",
+                scheduler.getNextInterval(stormy) < scheduler.getNextInterval(calm));
+    }
+
+    public void testVolatilityIsClamped() {
+        SyncScheduler scheduler = schedulerAt(TWO_PM);
+        SyncScheduler.Conditions everything = averageConditions();
+        everything.volatility = 1f;
+        SyncScheduler.Conditions tooMuch = averageConditions();
+        tooMuch.volatility = 5f;
+
+        assertEquals(scheduler.getNextInterval(everything), scheduler.getNextInterval(tooMuch));
+    }
+
+    public void testNightIsRelaxed() {
+        SyncScheduler.Conditions conditions = averageConditions();
+        int day = schedulerAt(TWO_PM).getNextInterval(conditions);
+
+        assertEquals(Math.round(day * SyncScheduler.NIGHT_FACTOR),
+                schedulerAt(THREE_AM).getNextInterval(conditions));
+        assertEquals(Math.round(day * SyncScheduler.NIGHT_FACTOR),
+                schedulerAt(ELEVEN_PM).getNextInterval(conditions));
+    }
+
+    public void testMorningIsTightened() {
+        SyncScheduler.Conditions conditions = averageConditions();
+        int day = schedulerAt(TWO_PM).getNextInterval(conditions);
+
+        assertEquals(Math.round(day * SyncScheduler.MORNING_FACTOR),
+                schedulerAt(SEVEN_AM).getNextInterval(conditions));
+    }
+
+    public void testTimeZoneDecidesTimeOfDay() {
+        // 14:00 UTC is 03:00 the next morning in Auckland (UTC+13 in December)
+        SyncScheduler auckland = new SyncScheduler(new SyncScheduler.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return TWO_PM;
+            }
+        }, TimeZone.getTimeZone("Pacific/Auckland"), BASE, MIN, MAX);
+
+        assertEquals(schedulerAt(THREE_AM).getNextInterval(averageConditions()),
+                auckland.getNextInterval(averageConditions()));
+    }
+
+    public void testNoSurfaceIsRelaxed() {
+        SyncScheduler scheduler = schedulerAt(TWO_PM);
+        SyncScheduler.Conditions watch = averageConditions();
+        watch.widgetsActive = false;
+        watch.watchActive = true;
+        SyncScheduler.Conditions nothing = averageConditions();
+        nothing.widgetsActive = false;
+
+        assertEquals("Error: a watch face should count like a widget",
+                scheduler.getNextInterval(averageConditions()), scheduler.getNextInterval(watch));
+        assertEquals(Math.round(BASE * SyncScheduler.NO_SURFACE_FACTOR),
+                scheduler.getNextInterval(nothing));
+    }
+
+    public void testBattery() {
+        SyncScheduler scheduler = schedulerAt(TWO_PM);
+        int onBattery = scheduler.getNextInterval(averageConditions());
+
+        SyncScheduler.Conditions charging = averageConditions();
+        charging.charging = true;
+        charging.batteryLow = true;
+        assertEquals("Error: a charging phone should not be treated as low on battery",
+                Math.round(onBattery * SyncScheduler.CHARGING_FACTOR),
+                scheduler.getNextInterval(charging));
+
+        SyncScheduler.Conditions low = averageConditions();
+        low.batteryLow = true;
+        assertEquals(Math.round(onBattery * SyncScheduler.LOW_BATTERY_FACTOR),
+                scheduler.getNextInterval(low));
+    }
+
+    public void testBounds() {
+        SyncScheduler.Conditions busiest = new SyncScheduler.Conditions();
+        busiest.volatility = 1f;
+        busiest.widgetsActive = true;
+        busiest.charging = true;
+        SyncScheduler.Conditions quietest = new SyncScheduler.Conditions();
+        quietest.batteryLow = true;
+
+        SyncScheduler tight = new SyncScheduler(new SyncScheduler.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return SEVEN_AM;
+            }
+        }, TimeZone.getTimeZone("UTC"), BASE, 2 * 60 * 60, 4 * 60 * 60);
+
+        assertEquals(2 * 60 * 60, tight.getNextInterval(busiest));
+        assertEquals(MAX, schedulerAt(THREE_AM).getNextInterval(quietest));
+    }
+
+    public void testBadBoundsRejected() {
+        try {
+            new SyncScheduler(SyncScheduler.SYSTEM_CLOCK, TimeZone.getTimeZone("UTC"), BASE, MAX, MIN);
+            fail("Error: a minimum above the maximum was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testFlexTime() {
+        assertEquals(BASE / 3, SyncScheduler.getFlexTime(BASE));
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.android.sunshine.app.utils;
+
+import com.example.android.sunshine.app.sync.ForecastEndpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP server on the loopback interface that stands in for OpenWeatherMap, so the sync
+ * adapter can be run end to end without a network or an API key.
+ *
+ * Responses are queued with {@link #enqueue(Response)} and served in order; once the queue is
+ * empty the default response is served. A response can be held back before it is sent, trickled
+ * out at a limited rate, or cut off part way through its body, and it can carry any status code
+ * and headers. Every request is recorded so tests can check what the sync adapter asked for.
+ * Recorded forecast payloads live under /forecast in the test resources.
+ */
+public class StubForecastServer {
+
+    public static final String FORECAST_PATH = "/data/2.5/forecast/daily";
+
+    // How often a throttled body is written, in milliseconds
+    private static final long THROTTLE_SLICE_MILLIS = 100;
+
+    /**
+     * What the server sends back for one request.
+     */
+    public static class Response {
+        private final int mCode;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        private long mLatencyMillis;
+        private int mBytesPerSecond;
+        private int mTruncateAt = -1;
+
+        public Response(int code, byte[] body) {
+            mCode = code;
+            mBody = body != null ? body : new byte[0];
+        }
+
+        public Response withHeader(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * Waits this long after reading the request before sending anything.
+         */
+        public Response withLatency(long latencyMillis) {
+            mLatencyMillis = latencyMillis;
+            return this;
+        }
+
+        /**
+         * Sends the body at no more than this many bytes a second.
+         */
+        public Response withThrottle(int bytesPerSecond) {
+            mBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Closes the connection after this many bytes of the body. The Content-Length still
+         * promises the whole body, as it would when a real connection drops.
+         */
+        public Response truncatedAt(int bytes) {
+            mTruncateAt = bytes;
+            return this;
+        }
+    }
+
+    /**
+     * What the server was asked for.
+     */
+    public static class RecordedRequest {
+        public final String method;
+        public final String target;
+        public final Map<String, String> headers;
+
+        RecordedRequest(String method, String target, Map<String, String> headers) {
+            this.method = method;
+            this.target = target;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the value of a header, ignoring the case of its name, or null
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+    }
+
+    private final LinkedBlockingQueue<Response> mResponses = new LinkedBlockingQueue<Response>();
+    private final LinkedBlockingQueue<RecordedRequest> mRequests =
+            new LinkedBlockingQueue<RecordedRequest>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private volatile Response mDefaultResponse = new Response(404, null);
+    private ServerSocket mServerSocket;
+
+    /**
+     * @return the body of a recorded payload from the test resources
+     */
+    public static byte[] loadPayload(String name) throws IOException {
+        InputStream in = StubForecastServer.class.getResourceAsStream("/forecast/" + name);
+        if (in == null) {
+            throw new IOException("No recorded payload " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return an endpoint that sends the sync adapter's forecast requests here
+     */
+    public ForecastEndpoint getEndpoint() {
+        return new ForecastEndpoint("http://127.0.0.1:" + mServerSocket.getLocalPort()
+                + FORECAST_PATH + "?", ForecastEndpoint.URL_CONNECTION);
+    }
+
+    public void enqueue(Response response) {
+        mResponses.add(response);
+    }
+
+    public void setDefaultResponse(Response response) {
+        mDefaultResponse = response;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the oldest request not yet taken, or null if none arrives within timeoutMillis
+     */
+    public RecordedRequest takeRequest(long timeoutMillis) throws InterruptedException {
+        return mRequests.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown()
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client went away; nothing to serve
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Already closed
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        InputStream in = socket.getInputStream();
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return;
+        }
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        String[] parts = requestLine.split(" ");
+        mRequests.add(new RecordedRequest(parts[0], parts.length > 1 ? parts[1] : "", headers));
+        mRequestCount.incrementAndGet();
+
+        Response response = mResponses.poll();
+        if (response == null) {
+            response = mDefaultResponse;
+        }
+        if (response.mLatencyMillis > 0) {
+            Thread.sleep(response.mLatencyMillis);
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.mCode).append(' ')
+                .append(reasonPhrase(response.mCode)).append("\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+        head.append("Connection: close\r\n\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("US-ASCII"));
+        writeBody(out, response);
+        out.flush();
+    }
+
+    private static void writeBody(OutputStream out, Response response)
+            throws IOException, InterruptedException {
+        int length = response.mBody.length;
+        if (response.mTruncateAt >= 0) {
+            length = Math.min(length, response.mTruncateAt);
+        }
+        int slice = length;
+        if (response.mBytesPerSecond > 0) {
+            slice = (int) Math.max(1, response.mBytesPerSecond * THROTTLE_SLICE_MILLIS / 1000);
+        }
+        try {
+            for (int offset = 0; offset < length; offset += slice) {
+                out.write(response.mBody, offset, Math.min(slice, length - offset));
+                out.flush();
+                if (response.mBytesPerSecond > 0 && offset + slice < length) {
+                    Thread.sleep(THROTTLE_SLICE_MILLIS);
+                }
+            }
+        } catch (SocketException e) {
+            // The client gave up part way, which is what some tests are after
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 429:
+                return "Too Many Requests";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status";
+        }
+    }
+}
@@ -113,6 +113,7 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.action_sync_trace).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -128,6 +129,10 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
         }
+        if (id == R.id.action_sync_trace) {
+            startActivity(new Intent(this, SyncTraceActivity.class));
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
@@ -1,8 +1,10 @@
 package com.example.android.sunshine.app;
 
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncRequestCoalescer;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.WearableListenerService;
@@ -15,7 +17,13 @@ public class ReceiveFromWearable extends WearableListenerService {
             if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
                 String path = dataEvent.getDataItem().getUri().getPath();
                 if (path.equals(getString(R.string.Data_Message_Path))) {
-                    SunshineSyncAdapter.syncImmediately(this);
+                    // Remembered so the sync schedule knows a watch face is showing the forecast
+                    PreferenceManager.getDefaultSharedPreferences(this).edit()
+                            .putLong(getString(R.string.pref_last_wearable_request_key),
+                                    System.currentTimeMillis())
+                            .apply();
+                    SunshineSyncAdapter.requestSync(this,
+                            SyncRequestCoalescer.TRIGGER_WEARABLE);
                 }
             }
         }
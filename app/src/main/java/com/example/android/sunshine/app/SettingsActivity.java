@@ -16,8 +16,11 @@
 package com.example.android.sunshine.app;
 
 import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.ListPreference;
@@ -30,7 +33,9 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastConsumers;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncRequestCoalescer;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.ui.PlacePicker;
 import com.google.android.gms.maps.model.LatLng;
@@ -166,8 +171,7 @@ public class SettingsActivity extends PreferenceActivity
                 mAttribution.setVisibility(View.GONE);
             }
 
-            Utility.resetLocationStatus(this);
-            SunshineSyncAdapter.syncImmediately(this);
+            showLocationForecast();
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
@@ -181,6 +185,62 @@ public class SettingsActivity extends PreferenceActivity
         }
     }
 
+    /**
+     * Gets the forecast for a newly chosen location on screen.  If it is a saved location the
+     * sync adapter has been keeping fresh, the forecast is already in the provider and the
+     * forecast list, widgets and so on only have to read it; otherwise we sync to fetch it.
+     */
+    private void showLocationForecast() {
+        new ShowLocationForecastTask(getApplicationContext())
+                .execute(Utility.getPreferredLocation(this));
+    }
+
+    /**
+     * Looks up, off the UI thread, whether a newly chosen location's forecast is stored. If it
+     * is, it is handed to everything that shows it; otherwise a sync is requested to fetch it.
+     */
+    private static class ShowLocationForecastTask extends AsyncTask<String, Void, Boolean> {
+        // The application context, so the task does not hold on to the activity
+        private final Context mContext;
+
+        ShowLocationForecastTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected Boolean doInBackground(String... locations) {
+            String location = locations[0];
+            if (!Utility.isForecastStored(mContext, location)) {
+                return false;
+            }
+            // Keep the location at the front of the saved set
+            ContentValues savedValues = new ContentValues();
+            savedValues.put(WeatherContract.LocationEntry.COLUMN_SAVED_AT, System.currentTimeMillis());
+            mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                    savedValues, WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{location});
+            // ... which may push the oldest one out of it
+            ContentValues expiredValues = new ContentValues();
+            expiredValues.putNull(WeatherContract.LocationEntry.COLUMN_SAVED_AT);
+            mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                    expiredValues, SunshineSyncAdapter.EXPIRED_SAVED_LOCATIONS_SELECTION, null);
+            // The widgets, Muzei, the notification and the wearable get it as after a sync
+            ForecastConsumers.pushStoredForecast(mContext);
+            return true;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean stored) {
+            if (stored) {
+                Utility.setLocationStatus(mContext, SunshineSyncAdapter.LOCATION_STATUS_OK);
+            } else {
+                Utility.resetLocationStatus(mContext);
+                SunshineSyncAdapter.requestSync(mContext,
+                        SyncRequestCoalescer.TRIGGER_LOCATION_CHANGED);
+            }
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     @Override
     public Intent getParentActivityIntent() {
@@ -234,8 +294,7 @@ public class SettingsActivity extends PreferenceActivity
                             Snackbar.LENGTH_LONG).show();
                 }
 
-                Utility.resetLocationStatus(this);
-                SunshineSyncAdapter.syncImmediately(this);
+                showLocationForecast();
             }
         } else {
             super.onActivityResult(requestCode, resultCode, data);
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.AsyncQueryHandler;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.text.format.DateUtils;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
+import com.example.android.sunshine.app.sync.SyncTrace;
+
+/**
+ * A developer screen listing the stages of the most recent syncs, newest sync first, with when
+ * each stage started, how long it took, what it downloaded or wrote and how it ended. It is only
+ * reachable from the main menu of debug builds.
+ */
+public class SyncTraceActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    private static final int SYNC_TRACE_LOADER = 0;
+
+    private static final String[] SYNC_TRACE_COLUMNS = {
+            SyncTraceEntry._ID,
+            SyncTraceEntry.COLUMN_SYNC_ID,
+            SyncTraceEntry.COLUMN_STAGE,
+            SyncTraceEntry.COLUMN_DETAIL,
+            SyncTraceEntry.COLUMN_START_OFFSET,
+            SyncTraceEntry.COLUMN_DURATION,
+            SyncTraceEntry.COLUMN_BYTES,
+            SyncTraceEntry.COLUMN_ROWS,
+            SyncTraceEntry.COLUMN_OUTCOME,
+            SyncTraceEntry.COLUMN_STARTED_AT
+    };
+
+    // Newest sync first, headed by the sync's own row, then its stages in the order they
+    // started.  The sync's row is written last, so it has to be put first explicitly.
+    public static final String SYNC_TRACE_SORT_ORDER = SyncTraceEntry.COLUMN_SYNC_ID + " DESC, "
+            + "(" + SyncTraceEntry.COLUMN_STAGE + " = '" + SyncTrace.STAGE_SYNC + "') DESC, "
+            + SyncTraceEntry.COLUMN_START_OFFSET + " ASC, "
+            + SyncTraceEntry._ID + " ASC";
+
+    // These indices are tied to SYNC_TRACE_COLUMNS.  If SYNC_TRACE_COLUMNS changes, these
+    // must change.
+    static final int COL_SYNC_ID = 1;
+    static final int COL_STAGE = 2;
+    static final int COL_DETAIL = 3;
+    static final int COL_START_OFFSET = 4;
+    static final int COL_DURATION = 5;
+    static final int COL_BYTES = 6;
+    static final int COL_ROWS = 7;
+    static final int COL_OUTCOME = 8;
+    static final int COL_STARTED_AT = 9;
+
+    private SimpleCursorAdapter mAdapter;
+    // Clears the trace off the UI thread; the loader reloads when the provider notifies
+    private AsyncQueryHandler mQueryHandler;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_sync_trace);
+        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        // Both text views are filled in by the view binder, from several columns each
+        mAdapter = new SimpleCursorAdapter(this, R.layout.list_item_sync_trace, null,
+                new String[]{SyncTraceEntry.COLUMN_STAGE, SyncTraceEntry.COLUMN_DURATION},
+                new int[]{R.id.list_item_sync_trace_stage, R.id.list_item_sync_trace_summary}, 0);
+        mAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (view.getId() == R.id.list_item_sync_trace_stage) {
+                    ((TextView) view).setText(formatStage(cursor));
+                } else {
+                    ((TextView) view).setText(formatSummary(cursor));
+                }
+                return true;
+            }
+        });
+
+        ListView listView = (ListView) findViewById(R.id.listview_sync_trace);
+        listView.setEmptyView(findViewById(R.id.listview_sync_trace_empty));
+        listView.setAdapter(mAdapter);
+
+        mQueryHandler = new AsyncQueryHandler(getContentResolver()) {};
+        getSupportLoaderManager().initLoader(SYNC_TRACE_LOADER, null, this);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.synctrace, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_clear_sync_trace) {
+            mQueryHandler.startDelete(0, null, SyncTraceEntry.CONTENT_URI, null, null);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private String formatStage(Cursor cursor) {
+        String stage = cursor.getString(COL_STAGE);
+        String detail;
+        if (SyncTrace.STAGE_SYNC.equals(stage)) {
+            // The sync itself heads its stages, so label it with when it ran
+            detail = DateUtils.formatDateTime(this, cursor.getLong(COL_STARTED_AT),
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME);
+        } else if (cursor.isNull(COL_DETAIL)) {
+            return stage;
+        } else {
+            detail = cursor.getString(COL_DETAIL);
+        }
+        return getString(R.string.format_sync_trace_stage, stage, detail);
+    }
+
+    private String formatSummary(Cursor cursor) {
+        StringBuilder summary = new StringBuilder(getString(R.string.format_sync_trace_timing,
+                cursor.getLong(COL_START_OFFSET), cursor.getLong(COL_DURATION),
+                cursor.getString(COL_OUTCOME)));
+        if (!cursor.isNull(COL_BYTES)) {
+            summary.append(getString(R.string.format_sync_trace_bytes, cursor.getLong(COL_BYTES)));
+        }
+        if (!cursor.isNull(COL_ROWS)) {
+            summary.append(getString(R.string.format_sync_trace_rows, cursor.getLong(COL_ROWS)));
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(this, SyncTraceEntry.CONTENT_URI, SYNC_TRACE_COLUMNS,
+                null, null, SYNC_TRACE_SORT_ORDER);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        mAdapter.swapCursor(data);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mAdapter.swapCursor(null);
+    }
+}
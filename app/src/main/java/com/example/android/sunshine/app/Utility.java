@@ -17,11 +17,13 @@ package com.example.android.sunshine.app;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.preference.PreferenceManager;
 import android.text.format.Time;
 
+import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
@@ -285,30 +287,45 @@ public class Utility {
         String formatArtUrl = prefs.getString(context.getString(R.string.pref_art_pack_key),
                 context.getString(R.string.pref_art_pack_sunshine));
 
+        String artName = getArtNameForWeatherCondition(weatherId);
+        if (artName == null) {
+            return null;
+        }
+        return String.format(Locale.US, formatArtUrl, artName);
+    }
+
+    /**
+     * Helper method to provide the name of the art for the weather condition id returned by the
+     * OpenWeatherMap call.  Conditions that share art share its name.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return the name of the corresponding weather artwork. null if no relation is found.
+     */
+    public static String getArtNameForWeatherCondition(int weatherId) {
         // Based on weather code data found at:
         // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
         if (weatherId >= 200 && weatherId <= 232) {
-            return String.format(Locale.US, formatArtUrl, "storm");
+            return "storm";
         } else if (weatherId >= 300 && weatherId <= 321) {
-            return String.format(Locale.US, formatArtUrl, "light_rain");
+            return "light_rain";
         } else if (weatherId >= 500 && weatherId <= 504) {
-            return String.format(Locale.US, formatArtUrl, "rain");
+            return "rain";
         } else if (weatherId == 511) {
-            return String.format(Locale.US, formatArtUrl, "snow");
+            return "snow";
         } else if (weatherId >= 520 && weatherId <= 531) {
-            return String.format(Locale.US, formatArtUrl, "rain");
+            return "rain";
         } else if (weatherId >= 600 && weatherId <= 622) {
-            return String.format(Locale.US, formatArtUrl, "snow");
+            return "snow";
         } else if (weatherId >= 701 && weatherId <= 761) {
-            return String.format(Locale.US, formatArtUrl, "fog");
+            return "fog";
         } else if (weatherId == 761 || weatherId == 781) {
-            return String.format(Locale.US, formatArtUrl, "storm");
+            return "storm";
         } else if (weatherId == 800) {
-            return String.format(Locale.US, formatArtUrl, "clear");
+            return "clear";
         } else if (weatherId == 801) {
-            return String.format(Locale.US, formatArtUrl, "light_clouds");
+            return "light_clouds";
         } else if (weatherId >= 802 && weatherId <= 804) {
-            return String.format(Locale.US, formatArtUrl, "clouds");
+            return "clouds";
         }
         return null;
     }
@@ -596,9 +613,40 @@ public class Utility {
      * @param c Context used to get the SharedPreferences
      */
     static public void resetLocationStatus(Context c){
+        setLocationStatus(c, SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+    }
+
+    /**
+     * Sets the location status.  Unlike the sync adapter's version this uses apply, so it is
+     * safe to call from the UI thread.
+     * @param c Context used to get the SharedPreferences
+     * @param locationStatus The IntDef value to set
+     */
+    static public void setLocationStatus(Context c,
+                                         @SunshineSyncAdapter.LocationStatus int locationStatus){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
         spe.apply();
     }
-}
\ No newline at end of file
+
+    /**
+     * @param c Context used to get the ContentResolver
+     * @param locationSetting the location setting to check
+     * @return true if a forecast from today onwards is stored for the location, so it can be
+     * shown without a sync
+     */
+    static public boolean isForecastStored(Context c, String locationSetting) {
+        Cursor cursor = c.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean stored = cursor.moveToFirst();
+        cursor.close();
+        return stored;
+    }
+}
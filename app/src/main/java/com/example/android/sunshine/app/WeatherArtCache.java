@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.FutureTarget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Weather art decoded at the sizes the notification, the wearable and the detail widget show it
+ * at, shared between them so that each condition's art is downloaded and decoded at most once
+ * per size.
+ *
+ * Art is keyed by the condition's art in the chosen art pack and by the size it was decoded at.
+ * Decoded art is kept in memory, up to a share of the heap, and written to the cache directory,
+ * up to a few megabytes, so it outlives the process; both drop the least recently used art first.
+ * With the Sunshine art pack the art bundled with the app is decoded instead of downloaded.
+ *
+ * {@link #getArt(int, int, int)} may block on the disk or the network, so it must not be called
+ * on the main thread. Callers must not recycle the bitmaps it returns, since they are shared.
+ */
+public class WeatherArtCache {
+
+    private static final String LOG_TAG = WeatherArtCache.class.getSimpleName();
+
+    private static final String DISK_CACHE_DIR = "weather_art";
+    private static final long DISK_CACHE_BYTES = 4 * 1024 * 1024;
+    // The memory cache may use this fraction of the heap
+    private static final int MEMORY_CACHE_DIVISOR = 16;
+    private static final long DOWNLOAD_TIMEOUT_MILLIS = 5 * 1000;
+
+    private static WeatherArtCache sInstance;
+
+    private final Context mContext;
+    private final File mDiskCacheDir;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    // Held while an entry is loaded, so two callers wanting the same art load it only once
+    private final HashMap<String, Object> mKeyLocks = new HashMap<String, Object>();
+    private int mLoadCount;
+
+    public static synchronized WeatherArtCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherArtCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WeatherArtCache(Context context) {
+        mContext = context;
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        int maxKilobytes = (int) (Runtime.getRuntime().maxMemory() / 1024 / MEMORY_CACHE_DIVISOR);
+        mMemoryCache = new LruCache<String, Bitmap>(maxKilobytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                // getByteCount() is only available from Honeycomb MR1
+                return bitmap.getRowBytes() * bitmap.getHeight() / 1024 + 1;
+            }
+        };
+    }
+
+    /**
+     * @param weatherId from OpenWeatherMap API response
+     * @param width the width to fit the art in, in pixels
+     * @param height the height to fit the art in, in pixels
+     * @return the art for the condition, or null if there is none
+     */
+    public Bitmap getArt(int weatherId, int width, int height) throws InterruptedException {
+        boolean local = Utility.usingLocalGraphics(mContext);
+        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+        String artUrl = local ? null : Utility.getArtUrlForWeatherCondition(mContext, weatherId);
+        if (artResourceId == -1 && artUrl == null) {
+            return null;
+        }
+        String key = (artUrl != null ? artUrl : "res:" + artResourceId) + "@" + width + "x" + height;
+
+        Bitmap art = mMemoryCache.get(key);
+        if (art != null) {
+            return art;
+        }
+        synchronized (getKeyLock(key)) {
+            art = mMemoryCache.get(key);
+            if (art != null) {
+                return art;
+            }
+            File file = new File(mDiskCacheDir, toFileName(key));
+            art = readFromDisk(file);
+            if (art == null) {
+                synchronized (this) {
+                    mLoadCount++;
+                }
+                if (artUrl != null) {
+                    art = download(artUrl, width, height);
+                }
+                if (art == null) {
+                    if (artResourceId == -1) {
+                        return null;
+                    }
+                    art = decodeResource(artResourceId, width, height);
+                    // Only the art that was asked for is cached; a failed download is retried
+                    if (art == null || artUrl != null) {
+                        return art;
+                    }
+                }
+                writeToDisk(file, art);
+            }
+            mMemoryCache.put(key, art);
+            return art;
+        }
+    }
+
+    /**
+     * Drops all art held in memory, leaving the art on disk.
+     */
+    public void evictMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Drops all art, in memory and on disk.
+     */
+    public synchronized void clear() {
+        evictMemory();
+        File[] files = mDiskCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return how many times art was downloaded or decoded from the app's resources, rather than
+     * found in the cache
+     */
+    synchronized int getLoadCount() {
+        return mLoadCount;
+    }
+
+    private Object getKeyLock(String key) {
+        synchronized (mKeyLocks) {
+            Object lock = mKeyLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                mKeyLocks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    private Bitmap download(String artUrl, int width, int height) throws InterruptedException {
+        FutureTarget<Bitmap> target = Glide.with(mContext)
+                .load(artUrl)
+                .asBitmap()
+                .fitCenter()
+                .into(width, height);
+        try {
+            return target.get(DOWNLOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.e(LOG_TAG, "Error retrieving art from " + artUrl, e);
+            target.cancel(true);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes bundled art no larger than it needs to be, then scales it to fit the size.
+     */
+    private Bitmap decodeResource(int artResourceId, int width, int height) {
+        Resources resources = mContext.getResources();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, artResourceId, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width
+                && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeResource(resources, artResourceId, options);
+        if (decoded == null) {
+            return null;
+        }
+
+        float scale = Math.min((float) width / decoded.getWidth(),
+                (float) height / decoded.getHeight());
+        int scaledWidth = Math.max(1, Math.round(decoded.getWidth() * scale));
+        int scaledHeight = Math.max(1, Math.round(decoded.getHeight() * scale));
+        if (scaledWidth == decoded.getWidth() && scaledHeight == decoded.getHeight()) {
+            return decoded;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, scaledWidth, scaledHeight, true);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        return scaled;
+    }
+
+    private Bitmap readFromDisk(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap art = BitmapFactory.decodeFile(file.getPath());
+        if (art == null) {
+            // Written only in part, most likely; it will be written again
+            file.delete();
+            return null;
+        }
+        // Keep it from being the first to go when the disk cache is trimmed
+        file.setLastModified(System.currentTimeMillis());
+        return art;
+    }
+
+    private synchronized void writeToDisk(File file, Bitmap art) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            Log.w(LOG_TAG, "Could not create " + mDiskCacheDir);
+            return;
+        }
+        // Written under another name first, so a half written file is never read back
+        File temp = new File(mDiskCacheDir, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            art.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing art to " + file, e);
+            temp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+            }
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > DISK_CACHE_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String toFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(".png").toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Both MD5 and UTF-8 are always there on Android
+            throw new IllegalStateException(e);
+        }
+    }
+}
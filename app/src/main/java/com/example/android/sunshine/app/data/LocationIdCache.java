@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * Maps location settings to the _id of their row in the location table.
+ *
+ * Every weather query and every sync needs that id, and the location table only changes when
+ * a new location is synced for the first time, so WeatherProvider keeps the mapping in memory.
+ * The provider is responsible for keeping it honest: it adds rows as it inserts them and clears
+ * the cache whenever locations are deleted or renamed, or a batch that may have inserted one is
+ * rolled back. Only locations that exist are cached.
+ */
+class LocationIdCache {
+
+    private final HashMap<String, Long> mIds = new HashMap<String, Long>();
+
+    /**
+     * @return the cached _id for locationSetting, or null if it is not cached
+     */
+    synchronized Long get(String locationSetting) {
+        return mIds.get(locationSetting);
+    }
+
+    synchronized void put(String locationSetting, long locationId) {
+        mIds.put(locationSetting, locationId);
+    }
+
+    synchronized void clear() {
+        mIds.clear();
+    }
+}
@@ -43,6 +43,7 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_TRACE = "sync_trace";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,6 +82,17 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // HTTP validators from the last forecast response for this location, sent back to
+        // openweathermap so an unchanged forecast can be answered with 304 Not Modified.
+        // Both are stored exactly as the server sent them and may be null.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // When the user last chose this location, in milliseconds since the epoch, or null if
+        // it is not one of their saved locations.  The sync adapter keeps the most recently
+        // chosen saved locations fresh, so switching back to one of them needs no download.
+        public static final String COLUMN_SAVED_AT = "saved_at";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -126,10 +138,26 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Marks the uri an insert returns when the day was already stored with the same values,
+        // so a batch can tell which of its days it actually wrote
+        public static final String PARAM_UNCHANGED = "unchanged";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        public static Uri buildUnchangedWeatherUri(long id) {
+            return buildWeatherUri(id).buildUpon()
+                    .appendQueryParameter(PARAM_UNCHANGED, "1").build();
+        }
+
+        /**
+         * @return whether an insert returned this uri for a day it left as it was
+         */
+        public static boolean isUnchangedUri(Uri uri) {
+            return uri.getQueryParameter(PARAM_UNCHANGED) != null;
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
          */
@@ -165,4 +193,43 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the sync trace table */
+    public static final class SyncTraceEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_TRACE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_TRACE;
+
+        // Each row is one timed stage of a sync.  Only the most recent syncs are kept; older
+        // ones are dropped as new ones are written.
+        public static final String TABLE_NAME = "sync_trace";
+
+        // Identifies the sync every stage belongs to.  Each sync takes the next number from a
+        // counter, so later syncs always sort after earlier ones whatever the clock does.
+        public static final String COLUMN_SYNC_ID = "sync_id";
+
+        // When the sync started, in milliseconds since the epoch, for showing only; order by
+        // the sync id.  Every stage of a sync has the same value.
+        public static final String COLUMN_STARTED_AT = "started_at";
+
+        // The stage, such as "download" or "store", and what it worked on, such as the location
+        // setting being downloaded.  The detail may be null.
+        public static final String COLUMN_STAGE = "stage";
+        public static final String COLUMN_DETAIL = "detail";
+
+        // When the stage started, in milliseconds after the start of the sync, and how long it
+        // took in milliseconds
+        public static final String COLUMN_START_OFFSET = "start_offset";
+        public static final String COLUMN_DURATION = "duration";
+
+        // Bytes read from the network and rows written by the stage, or null if it did neither
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_ROWS = "rows";
+
+        // How the stage ended, such as "ok", "skipped" or a failure like "timeout"
+        public static final String COLUMN_OUTCOME = "outcome";
+    }
 }
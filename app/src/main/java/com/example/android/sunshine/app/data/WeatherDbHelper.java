@@ -15,11 +15,16 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.os.Build;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
@@ -28,12 +33,123 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+
+    // The UNIQUE (date, location_id) constraint gives us an index with date first, which can't
+    // be used to find a location's days.  Every provider query filters on location and then date,
+    // so this index leads with location_id, is already in date order, and carries the columns the
+    // forecast list, widgets, Muzei and the wearable project so those reads never touch the table.
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX " + WEATHER_LOCATION_DATE_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ");";
+
+    static final String LOCATION_SAVED_AT_INDEX = "location_saved_at";
+
+    // Each sync reads the saved locations most recently chosen first; without this it scans
+    // every location it has ever looked up and sorts them.
+    private static final String SQL_CREATE_LOCATION_SAVED_AT_INDEX =
+            "CREATE INDEX " + LOCATION_SAVED_AT_INDEX + " ON " + LocationEntry.TABLE_NAME + " (" +
+                    LocationEntry.COLUMN_SAVED_AT + ");";
+
+    static final String SYNC_TRACE_SYNC_ID_INDEX = "sync_trace_sync_id";
+
+    // The trace screen lists the newest syncs first, and each stored trace trims the table to
+    // the newest syncs; both walk this index instead of scanning and sorting the table.
+    private static final String SQL_CREATE_SYNC_TRACE_SYNC_ID_INDEX =
+            "CREATE INDEX " + SYNC_TRACE_SYNC_ID_INDEX + " ON " + SyncTraceEntry.TABLE_NAME + " (" +
+                    SyncTraceEntry.COLUMN_SYNC_ID + ");";
+
+    // The sync trace table as version 6 added it; later columns are added by their own steps
+    private static final String SQL_CREATE_SYNC_TRACE_TABLE_V6 =
+            "CREATE TABLE " + SyncTraceEntry.TABLE_NAME + " (" +
+                    SyncTraceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    SyncTraceEntry.COLUMN_SYNC_ID + " INTEGER NOT NULL, " +
+                    SyncTraceEntry.COLUMN_STAGE + " TEXT NOT NULL, " +
+                    SyncTraceEntry.COLUMN_DETAIL + " TEXT, " +
+                    SyncTraceEntry.COLUMN_START_OFFSET + " INTEGER NOT NULL, " +
+                    SyncTraceEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                    SyncTraceEntry.COLUMN_BYTES + " INTEGER, " +
+                    SyncTraceEntry.COLUMN_ROWS + " INTEGER, " +
+                    SyncTraceEntry.COLUMN_OUTCOME + " TEXT NOT NULL);";
+
+    private static final String SQL_CREATE_SYNC_TRACE_TABLE =
+            "CREATE TABLE " + SyncTraceEntry.TABLE_NAME + " (" +
+                    SyncTraceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    SyncTraceEntry.COLUMN_SYNC_ID + " INTEGER NOT NULL, " +
+                    SyncTraceEntry.COLUMN_STAGE + " TEXT NOT NULL, " +
+                    SyncTraceEntry.COLUMN_DETAIL + " TEXT, " +
+                    SyncTraceEntry.COLUMN_START_OFFSET + " INTEGER NOT NULL, " +
+                    SyncTraceEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                    SyncTraceEntry.COLUMN_BYTES + " INTEGER, " +
+                    SyncTraceEntry.COLUMN_ROWS + " INTEGER, " +
+                    SyncTraceEntry.COLUMN_OUTCOME + " TEXT NOT NULL, " +
+                    SyncTraceEntry.COLUMN_STARTED_AT + " INTEGER);";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // The sync adapter writes while the forecast list, both widgets and Muzei read.  With
+        // the default rollback journal every reader waits for the sync's transaction to finish;
+        // with write-ahead logging the database keeps a pool of connections and readers carry
+        // on against the last committed snapshot.  The size of that pool is set by the
+        // platform, enabling WAL is what turns it on; there is no API to size it from here.
+        // A sync's fetch threads only download and parse, and all of its writes go in one
+        // batch on the sync thread, so the only extra connections needed are for the two
+        // fan-out readers, which the platform's pool covers.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // In WAL mode a NORMAL sync can't corrupt the database, at worst the last commits are
+        // lost on power failure, which for a cache of online data just means another sync.
+        // It saves an fsync on every commit.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Before Jelly Bean there is no setWriteAheadLoggingEnabled; turn it on per database.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            enableWriteAheadLogging(db);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Starts a write transaction.  Where WAL is available this is non-exclusive, so the readers
+     * WAL lets in are not shut out again by an exclusive lock.
+     */
+    static void beginWriteTransaction(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            beginTransactionNonExclusive(db);
+        } else {
+            db.beginTransaction();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void beginTransactionNonExclusive(SQLiteDatabase db) {
+        db.beginTransactionNonExclusive();
     }
 
     @Override
@@ -45,7 +161,10 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_SAVED_AT + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -81,18 +200,178 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_TRACE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_SAVED_AT_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_TRACE_SYNC_ID_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        // The database is only a cache for online data, but throwing it away means an empty
+        // forecast list and a blank widget until the next sync finishes.  So rather than
+        // starting over, walk the schema forward one version at a time, keeping every row.
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        // SQLiteOpenHelper runs this inside a transaction, so if any step fails the database
+        // is left exactly as it was.
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            upgradeTo(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Takes the schema from version - 1 to version.  When you increment DATABASE_VERSION, add
+     * the step for the new version here, and add the new schema to onCreate.
+     */
+    private void upgradeTo(SQLiteDatabase sqLiteDatabase, int version) {
+        switch (version) {
+            case 2:
+                // No schema change is recorded between versions 1 and 2
+                break;
+            case 3:
+                // HTTP validators for conditional forecast requests
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                        " ADD COLUMN " + LocationEntry.COLUMN_ETAG + " TEXT");
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                        " ADD COLUMN " + LocationEntry.COLUMN_LAST_MODIFIED + " TEXT");
+                break;
+            case 4:
+                sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                break;
+            case 5:
+                // Saved locations, refreshed together by each sync
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                        " ADD COLUMN " + LocationEntry.COLUMN_SAVED_AT + " INTEGER");
+                break;
+            case 6:
+                sqLiteDatabase.execSQL(SQL_CREATE_SYNC_TRACE_TABLE_V6);
+                break;
+            case 7:
+                sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_SAVED_AT_INDEX);
+                break;
+            case 8:
+                sqLiteDatabase.execSQL(SQL_CREATE_SYNC_TRACE_SYNC_ID_INDEX);
+                break;
+            case 9:
+                // Syncs were identified by their start time; keep that as the start time, and
+                // number the traced syncs in the same order, newest 0, so the counter's first
+                // sync follows them
+                sqLiteDatabase.execSQL("ALTER TABLE " + SyncTraceEntry.TABLE_NAME +
+                        " ADD COLUMN " + SyncTraceEntry.COLUMN_STARTED_AT + " INTEGER");
+                sqLiteDatabase.execSQL("UPDATE " + SyncTraceEntry.TABLE_NAME + " SET " +
+                        SyncTraceEntry.COLUMN_STARTED_AT + " = " + SyncTraceEntry.COLUMN_SYNC_ID);
+                sqLiteDatabase.execSQL("UPDATE " + SyncTraceEntry.TABLE_NAME + " SET " +
+                        SyncTraceEntry.COLUMN_SYNC_ID + " = -(SELECT COUNT(DISTINCT newer." +
+                        SyncTraceEntry.COLUMN_STARTED_AT + ") FROM " + SyncTraceEntry.TABLE_NAME +
+                        " newer WHERE newer." + SyncTraceEntry.COLUMN_STARTED_AT + " > " +
+                        SyncTraceEntry.TABLE_NAME + "." + SyncTraceEntry.COLUMN_STARTED_AT + ")");
+                break;
+            default:
+                throw new IllegalStateException("No upgrade to database version " + version);
+        }
+    }
+
+    /**
+     * A compiled INSERT into the weather table. The SQL is parsed and compiled once, and every
+     * row is bound column by column from primitives, so inserting many rows inside one
+     * transaction avoids both the per-row compile and the ContentValues boxing of
+     * {@link SQLiteDatabase#insert}.
+     *
+     * Not thread safe; create one per transaction and {@link #close()} it when done.
+     */
+    public static class WeatherInsertStatement {
+        private static final String SQL_INSERT_WEATHER = "INSERT INTO " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_HUMIDITY + ", " +
+                WeatherEntry.COLUMN_PRESSURE + ", " +
+                WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                WeatherEntry.COLUMN_DEGREES +
+                ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+        // The columns bound from ContentValues, in the order of SQL_INSERT_WEATHER
+        private static final String[] COLUMNS = {
+                WeatherEntry.COLUMN_LOC_KEY,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_HUMIDITY,
+                WeatherEntry.COLUMN_PRESSURE,
+                WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherEntry.COLUMN_DEGREES
+        };
+
+        private final SQLiteStatement mStatement;
+
+        public WeatherInsertStatement(SQLiteDatabase db) {
+            mStatement = db.compileStatement(SQL_INSERT_WEATHER);
+        }
+
+        /**
+         * Inserts one day of weather.
+         *
+         * @return the row ID of the inserted row, or -1 on failure
+         */
+        public long insert(long locationId, long date, int weatherId, String shortDesc,
+                           double min, double max, double humidity, double pressure,
+                           double windSpeed, double degrees) {
+            mStatement.bindLong(1, locationId);
+            mStatement.bindLong(2, date);
+            mStatement.bindLong(3, weatherId);
+            mStatement.bindString(4, shortDesc);
+            mStatement.bindDouble(5, min);
+            mStatement.bindDouble(6, max);
+            mStatement.bindDouble(7, humidity);
+            mStatement.bindDouble(8, pressure);
+            mStatement.bindDouble(9, windSpeed);
+            mStatement.bindDouble(10, degrees);
+            return mStatement.executeInsert();
+        }
+
+        /**
+         * Inserts one day of weather from ContentValues, which must hold every column; see
+         * {@link #canInsert(ContentValues)}.
+         *
+         * @return the row ID of the inserted row, or -1 on failure
+         */
+        public long insert(ContentValues values) {
+            return insert(values.getAsLong(WeatherEntry.COLUMN_LOC_KEY),
+                    values.getAsLong(WeatherEntry.COLUMN_DATE),
+                    values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                    values.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                    values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    values.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                    values.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                    values.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                    values.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+        }
+
+        /**
+         * @return true if values holds exactly the weather columns, all non-null, and can be
+         * inserted with {@link #insert(ContentValues)}
+         */
+        public static boolean canInsert(ContentValues values) {
+            if (values.size() != COLUMNS.length) {
+                return false;
+            }
+            for (String column : COLUMNS) {
+                if (values.get(column) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void close() {
+            mStatement.close();
+        }
     }
 }
@@ -17,25 +17,74 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private final LocationIdCache mLocationIds = new LocationIdCache();
+
+    // Set while applyBatch runs on this thread, so the writes it makes can defer their
+    // notifications until the batch commits.
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
-
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final int SYNC_TRACE = 400;
+
+    // The sync trace table is a ring buffer holding the stages of this many syncs
+    static final int MAX_TRACED_SYNCS = 20;
+
+    // Indexes into the counts returned by upsertWeather
+    private static final int UPSERT_INSERTED = 0;
+    private static final int UPSERT_UPDATED = 1;
+    private static final int UPSERT_UNCHANGED = 2;
+
+    // Every route, and the path the UriMatcher matches it by.  The matcher is built from these,
+    // so anything that has to handle every route, like the query plan tests, can go through them.
+    static final int[] ROUTES = {
+            WEATHER,
+            WEATHER_WITH_LOCATION,
+            WEATHER_WITH_LOCATION_AND_DATE,
+            LOCATION,
+            SYNC_TRACE
+    };
+    private static final String[] ROUTE_PATHS = {
+            WeatherContract.PATH_WEATHER,
+            WeatherContract.PATH_WEATHER + "/*",
+            WeatherContract.PATH_WEATHER + "/*/#",
+            WeatherContract.PATH_LOCATION,
+            WeatherContract.PATH_SYNC_TRACE
+    };
+
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    private static final SQLiteQueryBuilder sWeatherQueryBuilder =
+            buildTableQueryBuilder(WeatherContract.WeatherEntry.TABLE_NAME);
+    private static final SQLiteQueryBuilder sLocationQueryBuilder =
+            buildTableQueryBuilder(WeatherContract.LocationEntry.TABLE_NAME);
+    private static final SQLiteQueryBuilder sSyncTraceQueryBuilder =
+            buildTableQueryBuilder(WeatherContract.SyncTraceEntry.TABLE_NAME);
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,61 +100,97 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+    private static SQLiteQueryBuilder buildTableQueryBuilder(String table) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(table);
+        return builder;
+    }
+
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
-    private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
-
-        String[] selectionArgs;
-        String selection;
+    //location.location_setting = ?
+    static final String sLocationSettingSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
-        } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+    /**
+     * What a query of one of the routes runs: the tables, and the selection with its arguments.
+     * query() runs exactly this, so the query plan tests check the SQL the provider really issues.
+     */
+    static class RouteQuery {
+        final SQLiteQueryBuilder builder;
+        final String selection;
+        final String[] selectionArgs;
+
+        RouteQuery(SQLiteQueryBuilder builder, String selection, String[] selectionArgs) {
+            this.builder = builder;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+        /**
+         * @return the SELECT statement query() runs for this route
+         */
+        String buildSql(String[] projection, String sortOrder) {
+            return builder.buildQuery(projection, selection, null, null, sortOrder, null);
+        }
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
-
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+    /**
+     * Works out what a query of a route runs. The weather/* queries filter on the location's id
+     * rather than its setting, so SQLite can go straight to the weather index; the id comes from
+     * mLocationIds.
+     *
+     * @param locationId the id of the location in the uri, for the weather/* routes
+     */
+    static RouteQuery buildRouteQuery(int match, Uri uri, long locationId, String selection,
+                                      String[] selectionArgs) {
+        switch (match) {
+            // "weather/*/*"
+            case WEATHER_WITH_LOCATION_AND_DATE: {
+                long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                return new RouteQuery(sWeatherByLocationSettingQueryBuilder,
+                        sLocationIdAndDaySelection,
+                        new String[]{Long.toString(locationId), Long.toString(date)});
+            }
+            // "weather/*"
+            case WEATHER_WITH_LOCATION: {
+                long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                if (startDate == 0) {
+                    return new RouteQuery(sWeatherByLocationSettingQueryBuilder,
+                            sLocationIdSelection, new String[]{Long.toString(locationId)});
+                }
+                return new RouteQuery(sWeatherByLocationSettingQueryBuilder,
+                        sLocationIdWithStartDateSelection,
+                        new String[]{Long.toString(locationId), Long.toString(startDate)});
+            }
+            // "weather"
+            case WEATHER:
+                return new RouteQuery(sWeatherQueryBuilder, selection, selectionArgs);
+            // "location"
+            case LOCATION:
+                return new RouteQuery(sLocationQueryBuilder, selection, selectionArgs);
+            // "sync_trace"
+            case SYNC_TRACE:
+                return new RouteQuery(sSyncTraceQueryBuilder, selection, selectionArgs);
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
     }
 
     /*
@@ -125,11 +210,9 @@ public class WeatherProvider extends ContentProvider {
         final String authority = WeatherContract.CONTENT_AUTHORITY;
 
         // For each type of URI you want to add, create a corresponding code.
-        matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
-        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
-        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
-
-        matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        for (int i = 0; i < ROUTES.length; i++) {
+            matcher.addURI(authority, ROUTE_PATHS[i], ROUTES[i]);
+        }
         return matcher;
     }
 
@@ -164,6 +247,8 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_TRACE:
+                return WeatherContract.SyncTraceEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -174,49 +259,22 @@ public class WeatherProvider extends ContentProvider {
                         String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
-        Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
-            // "weather/*/*"
-            case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
-            // "weather/*"
-            case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
-                break;
-            }
-            // "weather"
-            case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
-            }
-            // "location"
-            case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.LocationEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
-            }
-
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        final int match = sUriMatcher.match(uri);
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long locationId = -1;
+        if (match == WEATHER_WITH_LOCATION || match == WEATHER_WITH_LOCATION_AND_DATE) {
+            locationId = findLocationId(db,
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
         }
+        RouteQuery routeQuery = buildRouteQuery(match, uri, locationId, selection, selectionArgs);
+        Cursor retCursor = routeQuery.builder.query(db,
+                projection,
+                routeQuery.selection,
+                routeQuery.selectionArgs,
+                null,
+                null,
+                sortOrder
+        );
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
@@ -232,26 +290,42 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
-                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
-                else
+                // A day already stored for the location is replaced in place, as the UNIQUE
+                // constraint would, and left alone if it has not changed.  The uri returned says
+                // which, so a batch can count the days it wrote.
+                long[] ids = new long[1];
+                int[] counts = upsertWeather(db, new ContentValues[]{values}, ids);
+                long _id = ids[0];
+                if ( _id <= 0 )
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                if (counts[UPSERT_UNCHANGED] > 0) {
+                    // Nothing was written, so there is nothing to notify
+                    return WeatherContract.WeatherEntry.buildUnchangedWeatherUri(_id);
+                }
+                returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 break;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                // A location that is already stored is returned as it is, so a sync can insert
+                // its location at the start of a batch and back-reference the id either way.
+                long _id = findLocationId(db,
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+                if (_id != -1) {
+                    return WeatherContract.LocationEntry.buildLocationUri(_id);
+                }
+                _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                if ( _id > 0 ) {
+                    mLocationIds.put(
+                            values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id);
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
-                else
+                } else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -270,13 +344,18 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mLocationIds.clear();
+                break;
+            case SYNC_TRACE:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncTraceEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -305,40 +384,334 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0
+                        && (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                        || values.containsKey(WeatherContract.LocationEntry._ID))) {
+                    mLocationIds.clear();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
+    /**
+     * Weather rows are upserted: each incoming day is compared with what is already stored for
+     * its location and date, new days are inserted, changed days are updated in place and days
+     * that are identical are left alone. Observers are only notified if something was written.
+     *
+     * @return the number of weather rows that were inserted or updated
+     */
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                int[] counts = upsertWeather(db, values, null);
+                Log.d(LOG_TAG, "bulkInsert: " + counts[UPSERT_INSERTED] + " inserted, "
+                        + counts[UPSERT_UPDATED] + " updated, "
+                        + counts[UPSERT_UNCHANGED] + " unchanged");
+                int written = counts[UPSERT_INSERTED] + counts[UPSERT_UPDATED];
+                if (written > 0) {
+                    notifyChange(uri);
+                }
+                return written;
+            case SYNC_TRACE:
+                insertSyncTrace(db, values);
+                notifyChange(uri);
+                return values.length;
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    /**
+     * Writes the stages of a sync to the trace table, then drops the stages of all but the
+     * newest MAX_TRACED_SYNCS syncs, so the table never grows past a few hundred rows.
+     */
+    private void insertSyncTrace(SQLiteDatabase db, ContentValues[] values) {
+        WeatherDbHelper.beginWriteTransaction(db);
+        try {
+            for (ContentValues value : values) {
+                if (db.insert(WeatherContract.SyncTraceEntry.TABLE_NAME, null, value) == -1) {
+                    throw new android.database.SQLException("Failed to insert sync trace " + value);
+                }
+            }
+            db.delete(WeatherContract.SyncTraceEntry.TABLE_NAME,
+                    WeatherContract.SyncTraceEntry.COLUMN_SYNC_ID + " NOT IN (SELECT DISTINCT "
+                            + WeatherContract.SyncTraceEntry.COLUMN_SYNC_ID + " FROM "
+                            + WeatherContract.SyncTraceEntry.TABLE_NAME + " ORDER BY "
+                            + WeatherContract.SyncTraceEntry.COLUMN_SYNC_ID + " DESC LIMIT "
+                            + MAX_TRACED_SYNCS + ")",
+                    null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the _id of the location row with the given setting, or -1 if there is none
+     */
+    private long findLocationId(SQLiteDatabase db, String locationSetting) {
+        if (locationSetting == null) {
+            return -1;
+        }
+        Long cachedId = mLocationIds.get(locationSetting);
+        if (cachedId != null) {
+            return cachedId;
+        }
+        Cursor location = sLocationQueryBuilder.query(db,
+                new String[]{WeatherContract.LocationEntry._ID},
+                sLocationSettingSelection,
+                new String[]{locationSetting}, null, null, null);
+        try {
+            if (!location.moveToFirst()) {
+                return -1;
+            }
+            long locationId = location.getLong(0);
+            mLocationIds.put(locationSetting, locationId);
+            return locationId;
+        } finally {
+            location.close();
+        }
+    }
+
+    /**
+     * Applies the operations in a single transaction, so readers never see part of a batch.
+     * Observers are not notified as each operation runs; once the batch has committed they get
+     * one notification per table it changed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatch.get() != null) {
+            // Already inside a batch on this thread, which will commit and notify for us
+            return super.applyBatch(operations);
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = new Batch();
+        ContentProviderResult[] results;
+        mBatch.set(batch);
+        boolean committed = false;
+        WeatherDbHelper.beginWriteTransaction(db);
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            batch.close();
+            db.endTransaction();
+            mBatch.remove();
+            if (!committed) {
+                // Any location the batch inserted has been rolled back
+                mLocationIds.clear();
+            }
+        }
+        for (Uri changedUri : batch.changedUris) {
+            getContext().getContentResolver().notifyChange(changedUri, null);
+        }
+        return results;
+    }
+
+    /**
+     * Notifies observers that uri changed. Inside applyBatch the notification is held back and
+     * widened to the uri of the table it belongs to, so the batch sends one notification per
+     * table however many rows it wrote.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+        switch (sUriMatcher.match(uri)) {
+            case WEATHER:
+            case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                batch.changedUris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+                break;
+            case LOCATION:
+                batch.changedUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+                break;
+            default:
+                batch.changedUris.add(uri);
+        }
+    }
+
+    /**
+     * Upserts weather rows: each incoming day is compared with what is already stored for its
+     * location and date, new days are inserted, changed days are updated in place and days that
+     * are identical are left alone.
+     *
+     * @param ids if not null, filled in with the id of each value's row, or -1 if it could not
+     *            be inserted
+     * @return the number of rows inserted, updated and left unchanged, indexed by UPSERT_INSERTED,
+     * UPSERT_UPDATED and UPSERT_UNCHANGED
+     */
+    private int[] upsertWeather(SQLiteDatabase db, ContentValues[] values, long[] ids) {
+        int[] counts = new int[3];
+        Batch batch = mBatch.get();
+        WeatherDbHelper.beginWriteTransaction(db);
+        try {
+            for (ContentValues value : values) {
+                normalizeDate(value);
+            }
+            Cursor stored = queryStoredWeather(db, values);
+            // A batch upserts one day per operation, so it keeps a single compiled statement
+            // for all of them
+            WeatherDbHelper.WeatherInsertStatement insertStatement = batch != null
+                    ? batch.getWeatherInsertStatement(db)
+                    : new WeatherDbHelper.WeatherInsertStatement(db);
+            try {
+                HashMap<String, Integer> storedPositions = new HashMap<String, Integer>();
+                while (stored.moveToNext()) {
+                    storedPositions.put(weatherKey(
+                            stored.getLong(stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)),
+                            stored.getLong(stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE))),
+                            stored.getPosition());
+                }
+                for (int i = 0; i < values.length; i++) {
+                    ContentValues value = values[i];
+                    Integer position = storedPositions.get(weatherKey(value));
+                    long _id;
+                    if (position == null) {
+                        _id = WeatherDbHelper.WeatherInsertStatement.canInsert(value)
+                                ? insertStatement.insert(value)
+                                : db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
-                            returnCount++;
+                            counts[UPSERT_INSERTED]++;
                         }
+                    } else {
+                        stored.moveToPosition(position);
+                        _id = stored.getLong(stored.getColumnIndex(WeatherContract.WeatherEntry._ID));
+                        if (isSameRow(stored, value)) {
+                            counts[UPSERT_UNCHANGED]++;
+                        } else {
+                            counts[UPSERT_UPDATED] += db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                                    WeatherContract.WeatherEntry._ID + " = ?",
+                                    new String[]{Long.toString(_id)});
+                        }
+                    }
+                    if (ids != null) {
+                        ids[i] = _id;
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
-            default:
-                return super.bulkInsert(uri, values);
+            } finally {
+                if (batch == null) {
+                    insertStatement.close();
+                }
+                stored.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the stored weather rows for every location in values, limited to the range of
+     * dates values covers.
+     */
+    private Cursor queryStoredWeather(SQLiteDatabase db, ContentValues[] values) {
+        HashSet<Long> locationIds = new HashSet<Long>();
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        for (ContentValues value : values) {
+            Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (locationId == null || date == null) {
+                continue;
+            }
+            locationIds.add(locationId);
+            minDate = Math.min(minDate, date);
+            maxDate = Math.max(maxDate, date);
+        }
+
+        // location_id IN (?, ?, ...) AND date BETWEEN ? AND ?
+        StringBuilder selection = new StringBuilder(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                .append(" IN (");
+        String[] selectionArgs = new String[locationIds.size() + 2];
+        int i = 0;
+        for (Long locationId : locationIds) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i++] = Long.toString(locationId);
+        }
+        selection.append(") AND ").append(WeatherContract.WeatherEntry.COLUMN_DATE)
+                .append(" BETWEEN ? AND ?");
+        selectionArgs[i++] = Long.toString(minDate);
+        selectionArgs[i] = Long.toString(maxDate);
+
+        return db.query(WeatherContract.WeatherEntry.TABLE_NAME, null, selection.toString(),
+                selectionArgs, null, null, null);
+    }
+
+    private static String weatherKey(long locationId, long date) {
+        return locationId + ":" + date;
+    }
+
+    private static String weatherKey(ContentValues value) {
+        return value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY) + ":"
+                + value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+    }
+
+    /**
+     * Returns true if every column in values already holds the same value in the cursor's
+     * current row.
+     */
+    private static boolean isSameRow(Cursor stored, ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = stored.getColumnIndex(entry.getKey());
+            if (index == -1) {
+                return false;
+            }
+            Object value = entry.getValue();
+            if (value == null) {
+                if (!stored.isNull(index)) {
+                    return false;
+                }
+            } else if (stored.isNull(index)) {
+                return false;
+            } else if (value instanceof Double || value instanceof Float) {
+                if (((Number) value).doubleValue() != stored.getDouble(index)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                if (((Number) value).longValue() != stored.getLong(index)) {
+                    return false;
+                }
+            } else if (!value.toString().equals(stored.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What the operations of one applyBatch call share.
+     */
+    private static class Batch {
+        final LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        private WeatherDbHelper.WeatherInsertStatement mWeatherInsertStatement;
+
+        WeatherDbHelper.WeatherInsertStatement getWeatherInsertStatement(SQLiteDatabase db) {
+            if (mWeatherInsertStatement == null) {
+                mWeatherInsertStatement = new WeatherDbHelper.WeatherInsertStatement(db);
+            }
+            return mWeatherInsertStatement;
+        }
+
+        void close() {
+            if (mWeatherInsertStatement != null) {
+                mWeatherInsertStatement.close();
+                mWeatherInsertStatement = null;
+            }
         }
     }
 
@@ -0,0 +1,372 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+import com.example.android.sunshine.app.MainActivity;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.WeatherArtCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything that shows the stored forecast: the widgets, Muzei, the daily notification and the
+ * wearable. A sync hands them each forecast it stores, and switching to a saved location or a
+ * wearable's request hands them the one already stored, so they only need a Context.
+ */
+public class ForecastConsumers {
+
+    private static final String LOG_TAG = ForecastConsumers.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int WEATHER_NOTIFICATION_ID = 3004;
+
+    // How many consumers of a new forecast run at once after a sync, and how many may wait
+    private static final int FAN_OUT_THREADS = 2;
+    private static final int FAN_OUT_QUEUE_CAPACITY = 8;
+    // How long each consumer may take before it is interrupted
+    private static final long WIDGETS_TIMEOUT_MILLIS = 2 * 1000;
+    private static final long MUZEI_TIMEOUT_MILLIS = 2 * 1000;
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long WEARABLE_TIMEOUT_MILLIS = 20 * 1000;
+    // Budgets for the steps inside the slower consumers, within their timeouts
+    private static final long WEARABLE_CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long WEARABLE_PUT_TIMEOUT_MILLIS = 5 * 1000;
+    // The size the watch face draws the weather icon at, in pixels
+    private static final int WEARABLE_ICON_SIZE = 40;
+
+    private static SyncFanOut sFanOut;
+
+    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    private static final String[] NOTIFY_WEARABLE = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_WEATHER_ID = 0;
+    private static final int INDEX_MAX_TEMP = 1;
+    private static final int INDEX_MIN_TEMP = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+
+    private final Context mContext;
+
+    ForecastConsumers(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Hands the newly stored forecast to everything that shows it. Each consumer runs as a job on
+     * the fan-out's own threads with its own timeout, so the sync can return to the SyncManager
+     * right away and a slow image download holds up nothing but the consumer waiting for it.
+     *
+     * @param changed false if the forecast came back identical to what was stored
+     * @param syncInterval the interval until the next sync, in seconds
+     */
+    void fanOut(SyncTrace trace, boolean changed, int syncInterval) {
+        SyncFanOut fanOut = getFanOut(mContext);
+
+        // No need to wake the widgets and Muzei if the forecast came back identical
+        if (changed) {
+            fanOut.submit(SyncTrace.STAGE_WIDGETS, WIDGETS_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+                @Override
+                public void run() {
+                    updateWidgets();
+                }
+            }, trace);
+            fanOut.submit(SyncTrace.STAGE_MUZEI, MUZEI_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+                @Override
+                public void run() {
+                    updateMuzei();
+                }
+            }, trace);
+        } else {
+            trace.begin(SyncTrace.STAGE_WIDGETS, null).end(SyncTrace.OUTCOME_SKIPPED);
+            trace.begin(SyncTrace.STAGE_MUZEI, null).end(SyncTrace.OUTCOME_SKIPPED);
+        }
+        fanOut.submit(SyncTrace.STAGE_NOTIFICATION, NOTIFICATION_TIMEOUT_MILLIS,
+                new SyncFanOut.Job() {
+                    @Override
+                    public void run() throws InterruptedException {
+                        notifyWeather();
+                    }
+                }, trace);
+        pushToWearable(trace, syncInterval);
+    }
+
+    /**
+     * Sends the stored forecast to the wearable, as a job on the fan-out's threads.
+     *
+     * @param syncInterval the interval until the next sync, in seconds
+     */
+    void pushToWearable(SyncTrace trace, final int syncInterval) {
+        getFanOut(mContext).submit(SyncTrace.STAGE_WEARABLE, WEARABLE_TIMEOUT_MILLIS, new SyncFanOut.Job() {
+            @Override
+            public void run() throws Exception {
+                sendWeatherDataToWearable(syncInterval);
+            }
+        }, trace);
+    }
+
+    /**
+     * Hands the forecast already stored for the preferred location to everything a sync would,
+     * without fetching anything, as when the user switches to a saved location.
+     */
+    public static void pushStoredForecast(Context context) {
+        SyncTrace trace = beginStoredForecastTrace(context);
+        new ForecastConsumers(context).fanOut(trace, true, getScheduledInterval(context));
+    }
+
+    /**
+     * Sends the forecast already stored for the preferred location to the wearable, without
+     * fetching anything, as when a wearable asks while the stored forecast is fresh.
+     */
+    public static void pushStoredForecastToWearable(Context context) {
+        SyncTrace trace = beginStoredForecastTrace(context);
+        new ForecastConsumers(context).pushToWearable(trace, getScheduledInterval(context));
+    }
+
+    /**
+     * @return a trace for a fan-out of the stored forecast, headed by a sync span marked as
+     * passing on the stored forecast, since nothing is fetched
+     */
+    private static SyncTrace beginStoredForecastTrace(Context context) {
+        SyncTrace trace = new SyncTrace(context);
+        trace.begin(SyncTrace.STAGE_SYNC, Utility.getPreferredLocation(context))
+                .end(SyncTrace.OUTCOME_STORED);
+        trace.store(context.getContentResolver());
+        return trace;
+    }
+
+    /**
+     * @return the interval until the next sync the last sync scheduled, in seconds
+     */
+    private static int getScheduledInterval(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getInt(
+                context.getString(R.string.pref_sync_interval_key),
+                SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    private static synchronized SyncFanOut getFanOut(Context context) {
+        if (sFanOut == null) {
+            sFanOut = new SyncFanOut(context.getApplicationContext().getContentResolver(),
+                    FAN_OUT_THREADS, FAN_OUT_QUEUE_CAPACITY);
+        }
+        return sFanOut;
+    }
+
+    private void updateWidgets() {
+        Context context = mContext;
+        // Setting the package ensures that only components in our app will receive the broadcast
+        Intent dataUpdatedIntent = new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                .setPackage(context.getPackageName());
+        context.sendBroadcast(dataUpdatedIntent);
+    }
+
+    /**
+     * Sends today's forecast and the key of its icon to the wearable. Runs as a fan-out job, so it connects
+     * its own client and blocks on each step, each with a budget that fits within the job's
+     * timeout, and disconnects when done.
+     *
+     * @param syncInterval the interval until the next sync, in seconds
+     */
+    private void sendWeatherDataToWearable(int syncInterval)
+            throws IOException, InterruptedException {
+        Context context = mContext;
+        String locationQuery = Utility.getPreferredLocation(context);
+
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+
+        // we'll query our contentProvider, as always
+        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+        int weatherId;
+        double high;
+        double low;
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            weatherId = cursor.getInt(INDEX_WEATHER_ID);
+            high = cursor.getDouble(INDEX_MAX_TEMP);
+            low = cursor.getDouble(INDEX_MIN_TEMP);
+        } finally {
+            cursor.close();
+        }
+
+        String tempHigh = Utility.formatTemperature(context, high);
+        String tempLow = Utility.formatTemperature(context, low);
+
+        // The watch shows this without asking for more until the next sync is due, with the
+        // flex time as slack for a sync that runs late.  The interval stretches overnight and
+        // when nothing changes, so a fixed window on the watch would ask in vain.
+        long maxAgeMillis = TimeUnit.SECONDS.toMillis(
+                syncInterval + SyncScheduler.getFlexTime(syncInterval));
+
+        GoogleApiClient googleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+        ConnectionResult connectionResult = googleApiClient.blockingConnect(
+                WEARABLE_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (!connectionResult.isSuccess()) {
+            throw new IOException("Could not connect to the wearable API: " + connectionResult);
+        }
+        try {
+            // The icon travels on its own, and only when the wearable does not have it yet
+            String iconKey = new WearableIconStore(context, googleApiClient,
+                    WEARABLE_ICON_SIZE, WEARABLE_PUT_TIMEOUT_MILLIS).publish(weatherId);
+
+            PutDataMapRequest putDataMapReq = PutDataMapRequest.create(context.getString(R.string.Data_Path));
+            putDataMapReq.getDataMap().putString(context.getString(R.string.temp_high_key), tempHigh);
+            putDataMapReq.getDataMap().putString(context.getString(R.string.Temp_Low_Key), tempLow);
+            putDataMapReq.getDataMap().putLong(context.getString(R.string.Time_Key), System.currentTimeMillis());
+            putDataMapReq.getDataMap().putLong(context.getString(R.string.Max_Age_Key), maxAgeMillis);
+            if (iconKey != null) {
+                putDataMapReq.getDataMap().putString(context.getString(R.string.Weather_Icon_Key), iconKey);
+            }
+            DataApi.DataItemResult dataItemResult = Wearable.DataApi
+                    .putDataItem(googleApiClient, putDataMapReq.asPutDataRequest())
+                    .await(WEARABLE_PUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (!dataItemResult.getStatus().isSuccess()) {
+                throw new IOException("Failed to send weather data item: "
+                        + dataItemResult.getStatus());
+            }
+            Log.d(LOG_TAG, "Successfully sent weather data item to com.example.android.app");
+        } finally {
+            googleApiClient.disconnect();
+        }
+    }
+
+    private void updateMuzei() {
+        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
+        // Muzei background on lower API level devices
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            Context context = mContext;
+            context.startService(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setClass(context, WeatherMuzeiSource.class));
+        }
+    }
+
+    private void notifyWeather() throws InterruptedException {
+        Context context = mContext;
+        //checking the last update and notify if it' the first of the day
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+
+        if ( displayNotifications ) {
+
+            String lastNotificationKey = context.getString(R.string.pref_last_notification);
+            long lastSync = prefs.getLong(lastNotificationKey, 0);
+
+            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
+                // Last sync was more than 1 day ago, let's send a notification with the weather.
+                String locationQuery = Utility.getPreferredLocation(context);
+
+                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+
+                // we'll query our contentProvider, as always
+                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+
+                if (cursor.moveToFirst()) {
+                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
+                    double high = cursor.getDouble(INDEX_MAX_TEMP);
+                    double low = cursor.getDouble(INDEX_MIN_TEMP);
+                    String desc = cursor.getString(INDEX_SHORT_DESC);
+
+                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                    Resources resources = context.getResources();
+
+                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                    // Prior to that, we use a fixed size
+                    @SuppressLint("InlinedApi")
+                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                    @SuppressLint("InlinedApi")
+                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                    // Retrieve the large icon
+                    Bitmap largeIcon = WeatherArtCache.getInstance(context)
+                            .getArt(weatherId, largeIconWidth, largeIconHeight);
+                    String title = context.getString(R.string.app_name);
+
+                    // Define the text of the forecast.
+                    String contentText = String.format(context.getString(R.string.format_notification),
+                            desc,
+                            Utility.formatTemperature(context, high),
+                            Utility.formatTemperature(context, low));
+
+                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                    // notifications.  Just throw in some data.
+                    NotificationCompat.Builder mBuilder =
+                            new NotificationCompat.Builder(mContext)
+                                    .setColor(resources.getColor(R.color.primary_light))
+                                    .setSmallIcon(iconId)
+                                    .setLargeIcon(largeIcon)
+                                    .setContentTitle(title)
+                                    .setContentText(contentText);
+
+                    // Make something interesting happen when the user clicks on the notification.
+                    // In this case, opening the app is sufficient.
+                    Intent resultIntent = new Intent(context, MainActivity.class);
+
+                    // The stack builder object will contain an artificial back stack for the
+                    // started Activity.
+                    // This ensures that navigating backward from the Activity leads out of
+                    // your application to the Home screen.
+                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                    stackBuilder.addNextIntent(resultIntent);
+                    PendingIntent resultPendingIntent =
+                            stackBuilder.getPendingIntent(
+                                    0,
+                                    PendingIntent.FLAG_UPDATE_CURRENT
+                            );
+                    mBuilder.setContentIntent(resultPendingIntent);
+
+                    NotificationManager mNotificationManager =
+                            (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                    //refreshing last sync
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                    editor.commit();
+                }
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The body of a forecast response, decoded and buffered for the parser.
+ *
+ * The request asks for a gzip compressed body. Because we set Accept-Encoding ourselves,
+ * HttpURLConnection leaves the body alone and it is inflated here, which lets us count both the
+ * bytes that came over the network and the bytes they decoded to. Reads go through a byte buffer
+ * that is taken from a small pool and handed back on {@link #close()}, so back to back syncs do
+ * not allocate a new one each time.
+ */
+public class ForecastDownload implements Closeable {
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 2;
+    private static final ArrayList<byte[]> sBufferPool = new ArrayList<byte[]>(MAX_POOLED_BUFFERS);
+
+    private final CountingInputStream mWireStream;
+    private final CountingInputStream mDecodedStream;
+    private final InputStream mStream;
+
+    /**
+     * Asks the server for a compressed response. Must be called before the connection is made.
+     */
+    public static void requestCompression(HttpURLConnection urlConnection) {
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+    }
+
+    /**
+     * @param wireStream the response body exactly as it came off the network
+     * @param contentEncoding the Content-Encoding of the response, may be null
+     * @throws IOException if the body claims to be gzip but has no valid gzip header
+     */
+    public ForecastDownload(InputStream wireStream, String contentEncoding) throws IOException {
+        mWireStream = new CountingInputStream(wireStream);
+        InputStream decoded = mWireStream;
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            decoded = new GZIPInputStream(decoded);
+        }
+        mDecodedStream = new CountingInputStream(decoded);
+        mStream = new PooledBufferedInputStream(mDecodedStream);
+    }
+
+    /**
+     * @return the decoded, buffered response body
+     */
+    public InputStream getStream() {
+        return mStream;
+    }
+
+    /**
+     * @return the number of bytes read from the network so far
+     */
+    public long getWireBytes() {
+        return mWireStream.mCount;
+    }
+
+    /**
+     * @return the number of bytes the body has decoded to so far
+     */
+    public long getDecodedBytes() {
+        return mDecodedStream.mCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            int size = sBufferPool.size();
+            if (size > 0) {
+                return sBufferPool.remove(size - 1);
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes that pass through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * A minimal buffered stream whose buffer comes from the pool rather than being allocated
+     * per stream.
+     */
+    private static class PooledBufferedInputStream extends FilterInputStream {
+        private byte[] mBuffer = obtainBuffer();
+        private int mPos;
+        private int mCount;
+
+        PooledBufferedInputStream(InputStream in) {
+            super(in);
+        }
+
+        private boolean fill() throws IOException {
+            mPos = 0;
+            mCount = Math.max(in.read(mBuffer, 0, mBuffer.length), 0);
+            return mCount > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkOpen();
+            if (mPos >= mCount && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkOpen();
+            if (count == 0) {
+                return 0;
+            }
+            int available = mCount - mPos;
+            if (available <= 0) {
+                // Large reads bypass the buffer rather than copying through it
+                if (count >= mBuffer.length) {
+                    return in.read(buffer, offset, count);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                available = mCount;
+            }
+            int read = Math.min(available, count);
+            System.arraycopy(mBuffer, mPos, buffer, offset, read);
+            mPos += read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            checkOpen();
+            return (mCount - mPos) + in.available();
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            checkOpen();
+            int buffered = mCount - mPos;
+            if (byteCount <= buffered) {
+                mPos += (int) byteCount;
+                return byteCount;
+            }
+            mPos = mCount;
+            return buffered + in.skip(byteCount - buffered);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBuffer != null) {
+                recycleBuffer(mBuffer);
+                mBuffer = null;
+            }
+            super.close();
+        }
+
+        private void checkOpen() throws IOException {
+            if (mBuffer == null) {
+                throw new IOException("Stream is closed");
+            }
+        }
+    }
+}
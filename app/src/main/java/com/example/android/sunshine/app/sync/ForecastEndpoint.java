@@ -0,0 +1,66 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Where the sync adapter downloads forecasts from, and how it connects there.
+ *
+ * Normally this is OpenWeatherMap over a plain HttpURLConnection. The base URL is the
+ * FORECAST_BASE_URL build config field, which a build can point somewhere else with
+ * -PforecastBaseUrl, and tests can hand the sync adapter an endpoint of their own with
+ * {@link SunshineSyncAdapter#setForecastEndpoint(ForecastEndpoint)}. Either way the sync runs
+ * against a local stub server without changing any other code.
+ */
+public class ForecastEndpoint {
+
+    /**
+     * Opens the connection for a forecast request. The caller sets up the request and
+     * disconnects when it is done.
+     */
+    public interface Transport {
+        HttpURLConnection open(URL url) throws IOException;
+    }
+
+    public static final Transport URL_CONNECTION = new Transport() {
+        @Override
+        public HttpURLConnection open(URL url) throws IOException {
+            return (HttpURLConnection) url.openConnection();
+        }
+    };
+
+    public static final ForecastEndpoint DEFAULT =
+            new ForecastEndpoint(BuildConfig.FORECAST_BASE_URL, URL_CONNECTION);
+
+    private final String mBaseUrl;
+    private final Transport mTransport;
+
+    /**
+     * @param baseUrl the daily forecast URL, to which the query parameters are appended
+     * @param transport how to open connections to it
+     */
+    public ForecastEndpoint(String baseUrl, Transport transport) {
+        mBaseUrl = baseUrl;
+        mTransport = transport;
+    }
+
+    /**
+     * @return a builder for a request, ready for its query parameters
+     */
+    public Uri.Builder buildUpon() {
+        return Uri.parse(mBaseUrl).buildUpon();
+    }
+
+    public HttpURLConnection open(Uri uri) throws IOException {
+        return mTransport.open(new URL(uri.toString()));
+    }
+
+    public String getBaseUrl() {
+        return mBaseUrl;
+    }
+}
@@ -2,68 +2,60 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
 import android.content.AbstractThreadedSyncAdapter;
+import android.content.ComponentName;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
 import com.example.android.sunshine.app.BuildConfig;
-import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.Asset;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import org.json.JSONArray;
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TimeZone;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener{
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
@@ -71,45 +63,77 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
+    // Bounds for the adaptive schedule around SYNC_INTERVAL, in seconds
+    public static final int SYNC_INTERVAL_MIN = 60 * 60;
+    public static final int SYNC_INTERVAL_MAX = 60 * 60 * 12;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
-    private static final int WEATHER_NOTIFICATION_ID = 3004;
-
-    private GoogleApiClient mGoogleApiClient;
-
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    private static final String[] NOTIFY_WEARABLE = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+    // A watch that asked for the forecast this recently counts as showing it
+    private static final long WATCH_ACTIVE_MILLIS = DAY_IN_MILLIS;
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    // HTTP headers used to make the forecast request conditional
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    // Requests for an immediate sync this close together are merged
+    private static final long SYNC_REQUEST_WINDOW_MILLIS = 1000 * 60;
+    // Requests for an immediate sync this soon after a successful one are dropped
+    private static final long SYNC_FRESH_MILLIS = 1000 * 60 * 30;
+
+    private static final SyncRetryPolicy sRetryPolicy = new SyncRetryPolicy(new Random());
+    private static volatile ForecastEndpoint sEndpoint = ForecastEndpoint.DEFAULT;
+    private static final SyncRequestCoalescer sCoalescer = new SyncRequestCoalescer(
+            SyncScheduler.SYSTEM_CLOCK, SYNC_REQUEST_WINDOW_MILLIS, SYNC_FRESH_MILLIS);
+
+    private static final String[] VALIDATOR_PROJECTION = new String[] {
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED
     };
 
     // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {
-
-    }
-
-    @Override
-    public void onConnectionSuspended(int i) {
-
-    }
-
-    @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-
-    }
+    private static final int INDEX_ETAG = 0;
+    private static final int INDEX_LAST_MODIFIED = 1;
+
+    // At most this many saved locations are kept fresh, the preferred one included
+    public static final int MAX_SAVED_LOCATIONS = 5;
+    // How many forecasts are downloaded at once when several locations are synced
+    private static final int MAX_PARALLEL_FETCHES = 2;
+
+    // The saved locations other than the preferred one, most recently chosen first
+    public static final String SAVED_LOCATIONS_SELECTION =
+            WeatherContract.LocationEntry.COLUMN_SAVED_AT + " IS NOT NULL AND "
+                    + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " != ?";
+    public static final String SAVED_LOCATIONS_SORT_ORDER =
+            WeatherContract.LocationEntry.COLUMN_SAVED_AT + " DESC";
+
+    // The saved locations beyond the newest MAX_SAVED_LOCATIONS, which drop out of the set
+    public static final String EXPIRED_SAVED_LOCATIONS_SELECTION =
+            WeatherContract.LocationEntry.COLUMN_SAVED_AT + " IS NOT NULL AND "
+                    + WeatherContract.LocationEntry._ID + " NOT IN (SELECT "
+                    + WeatherContract.LocationEntry._ID + " FROM "
+                    + WeatherContract.LocationEntry.TABLE_NAME + " WHERE "
+                    + WeatherContract.LocationEntry.COLUMN_SAVED_AT + " IS NOT NULL ORDER BY "
+                    + WeatherContract.LocationEntry.COLUMN_SAVED_AT + " DESC LIMIT "
+                    + MAX_SAVED_LOCATIONS + ")";
+
+    // The days before the first one just fetched, which are deleted
+    public static final String OLD_WEATHER_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?";
+
+    private static final String[] SAVED_LOCATION_PROJECTION = new String[] {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final int INDEX_SAVED_LOCATION_SETTING = 0;
+    private static final int INDEX_SAVED_COORD_LAT = 1;
+    private static final int INDEX_SAVED_COORD_LONG = 2;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -128,21 +152,310 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-
         // We no longer need just the location String, but also potentially the latitude and
         // longitude, in case we are syncing based on a new Place Picker API result.
         Context context = getContext();
+        SyncTrace trace = new SyncTrace(context);
         String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
+        SyncTrace.Span syncSpan = trace.begin(SyncTrace.STAGE_SYNC, locationQuery);
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        ForecastFetch preferred;
+        if (Utility.isLocationLatLonAvailable(context)) {
+            preferred = new ForecastFetch(locationQuery, null,
+                    String.valueOf(Utility.getLocationLatitude(context)),
+                    String.valueOf(Utility.getLocationLongitude(context)));
+        } else {
+            preferred = new ForecastFetch(locationQuery, locationQuery, null, null);
+        }
+
+        ArrayList<ForecastFetch> fetches = querySavedLocations(locationQuery);
+        boolean fetchingPreferred = !isKnownInvalidLocation(locationQuery);
+        if (!fetchingPreferred) {
+            // The server has already told us it does not know this location, and asking again
+            // will not change its mind. Wait for the user to pick another one.
+            Log.d(LOG_TAG, "Not fetching unknown location " + locationQuery);
+        } else {
+            fetches.add(0, preferred);
+        }
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        fetchAll(fetches, julianStartDay, trace);
+
+        if (preferred.notModified) {
+            // What we have stored is still current, so there is nothing to write for it or
+            // push out to the widgets, Muzei or the wearable.
+            Log.d(LOG_TAG, "Forecast not modified for " + locationQuery);
+        }
+
+        int preferredChanged;
+        SyncTrace.Span storeSpan = trace.begin(SyncTrace.STAGE_STORE, null);
+        try {
+            preferredChanged = storeForecasts(fetches, preferred, julianStartDay);
+            storeSpan.setRows(preferredChanged).end(SyncTrace.OUTCOME_OK);
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Error storing forecast", e);
+            endTrace(trace, storeSpan, syncSpan);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing forecast", e);
+            endTrace(trace, storeSpan, syncSpan);
+            return;
+        }
+
+        if (preferred.status != LOCATION_STATUS_UNKNOWN) {
+            setLocationStatus(getContext(), preferred.status);
+        }
+        // Scheduled first, since the wearable is told how long the forecast lasts until then
+        int syncInterval = scheduleNextSync(preferred, preferredChanged);
+        if (preferred.forecast != null && preferred.forecast.days.size() > 0) {
+            new ForecastConsumers(context).fanOut(trace, preferredChanged > 0, syncInterval);
+            Log.d(LOG_TAG, "Sync Complete. " + preferred.forecast.days.size() + " Inserted");
+        }
+        // A location that was not fetched neither failed nor succeeded, so it is neither
+        // retried nor counted as fresh
+        if (fetchingPreferred) {
+            applyRetryPolicy(preferred, syncResult);
+        }
+
+        // The fan-out goes on without us; its stages are stored with this sync as they finish
+        String outcome;
+        if (!fetchingPreferred) {
+            outcome = SyncTrace.OUTCOME_SKIPPED;
+        } else if (preferred.notModified) {
+            outcome = SyncTrace.OUTCOME_NOT_MODIFIED;
+        } else {
+            outcome = SyncTrace.getOutcome(preferred.failure);
+        }
+        syncSpan.setRows(preferredChanged).end(outcome);
+        trace.store(context.getContentResolver());
+    }
+
+    /**
+     * Ends the spans a failed sync left open and stores the trace.
+     */
+    private void endTrace(SyncTrace trace, SyncTrace.Span... openSpans) {
+        for (SyncTrace.Span span : openSpans) {
+            span.end(SyncTrace.OUTCOME_FAILED);
+        }
+        trace.store(getContext().getContentResolver());
+    }
+
+    /**
+     * Tells the SyncManager whether and when to retry, from how the preferred location's fetch
+     * went. Transient failures are reported as soft errors, which the SyncManager retries, with
+     * delayUntil holding the retry off until our backoff has passed. Permanent failures are
+     * reported as hard errors, which it does not retry. See {@link SyncRetryPolicy}.
+     */
+    private void applyRetryPolicy(ForecastFetch preferred, SyncResult syncResult) {
+        Context context = getContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String attemptsKey = context.getString(R.string.pref_sync_failures_key);
+        if (preferred.failure == SyncRetryPolicy.FAILURE_NONE) {
+            prefs.edit()
+                    .remove(attemptsKey)
+                    .putLong(context.getString(R.string.pref_last_sync_success_key),
+                            System.currentTimeMillis())
+                    .commit();
+            return;
+        }
 
+        int attempts = prefs.getInt(attemptsKey, 0) + 1;
+        if (sRetryPolicy.shouldRetry(preferred.failure, attempts)) {
+            long backoff = sRetryPolicy.getBackoffSeconds(preferred.failure, attempts,
+                    preferred.retryAfterSeconds);
+            Log.d(LOG_TAG, "Sync failure " + SyncRetryPolicy.describe(preferred.failure) + ", attempt " + attempts
+                    + ", retrying in " + backoff + " seconds");
+            syncResult.stats.numIoExceptions++;
+            syncResult.delayUntil = System.currentTimeMillis() / 1000 + backoff;
+            prefs.edit().putInt(attemptsKey, attempts).commit();
+        } else {
+            Log.d(LOG_TAG, "Sync failure " + SyncRetryPolicy.describe(preferred.failure) + " is permanent, not retrying");
+            syncResult.stats.numParseExceptions++;
+            SharedPreferences.Editor editor = prefs.edit().remove(attemptsKey);
+            if (preferred.failure == SyncRetryPolicy.FAILURE_NOT_FOUND) {
+                editor.putString(context.getString(R.string.pref_invalid_location_key),
+                        preferred.locationSetting);
+            }
+            editor.commit();
+        }
+    }
+
+    /**
+     * @return true if the server has said it does not know locationSetting and the user has
+     * not picked another location since
+     */
+    private boolean isKnownInvalidLocation(String locationSetting) {
+        Context context = getContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return Utility.getLocationStatus(context) == LOCATION_STATUS_INVALID
+                && locationSetting.equals(
+                prefs.getString(context.getString(R.string.pref_invalid_location_key), null));
+    }
+
+    /**
+     * @return the delay a Retry-After header asks for, in seconds, or 0 if there is none. Only
+     * the delay-seconds form is understood; an HTTP date is ignored.
+     */
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reschedules the periodic sync from how much this one changed and what the device is doing
+     * now. See {@link SyncScheduler}.
+     *
+     * @return the interval until the next sync, in seconds
+     */
+    private int scheduleNextSync(ForecastFetch preferred, int preferredChanged) {
+        Context context = getContext();
+        SyncScheduler.Conditions conditions = new SyncScheduler.Conditions();
+
+        if (preferred.forecast != null && preferred.forecast.days.size() > 0) {
+            conditions.volatility = (float) preferredChanged / preferred.forecast.days.size();
+        } else if (!preferred.notModified) {
+            // This sync told us nothing, so assume an average amount of change
+            conditions.volatility = 0.5f;
+        }
+
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        conditions.widgetsActive = appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, TodayWidgetProvider.class)).length > 0
+                || appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, DetailWidgetProvider.class)).length > 0;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long lastWearableRequest = prefs.getLong(
+                context.getString(R.string.pref_last_wearable_request_key), 0);
+        conditions.watchActive =
+                System.currentTimeMillis() - lastWearableRequest < WATCH_ACTIVE_MILLIS;
+
+        // ACTION_BATTERY_CHANGED is sticky, so this reads the last battery state without
+        // registering anything
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            conditions.charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                    || status == BatteryManager.BATTERY_STATUS_FULL;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            conditions.batteryLow = level >= 0 && scale > 0
+                    && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        }
+
+        int interval = new SyncScheduler(SyncScheduler.SYSTEM_CLOCK, TimeZone.getDefault(),
+                SYNC_INTERVAL, SYNC_INTERVAL_MIN, SYNC_INTERVAL_MAX).getNextInterval(conditions);
+
+        // Only touch the periodic sync when the interval actually moves
+        String intervalKey = context.getString(R.string.pref_sync_interval_key);
+        if (prefs.getInt(intervalKey, SYNC_INTERVAL) != interval) {
+            Log.d(LOG_TAG, "Next sync in " + interval + " seconds");
+            configurePeriodicSync(context, interval, SyncScheduler.getFlexTime(interval));
+            prefs.edit().putInt(intervalKey, interval).commit();
+        }
+        return interval;
+    }
+
+    /**
+     * Returns a fetch for each of the other saved locations that should be kept fresh alongside
+     * the preferred one, most recently chosen first. They are fetched by the coordinates OWM
+     * gave us for them last time, which works whether they were typed in or picked on a map.
+     */
+    private ArrayList<ForecastFetch> querySavedLocations(String preferredLocationSetting) {
+        ArrayList<ForecastFetch> fetches = new ArrayList<ForecastFetch>(MAX_SAVED_LOCATIONS);
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                SAVED_LOCATION_PROJECTION,
+                SAVED_LOCATIONS_SELECTION,
+                new String[]{preferredLocationSetting},
+                SAVED_LOCATIONS_SORT_ORDER);
+        if (cursor == null) {
+            return fetches;
+        }
+        while (cursor.moveToNext() && fetches.size() < MAX_SAVED_LOCATIONS - 1) {
+            fetches.add(new ForecastFetch(cursor.getString(INDEX_SAVED_LOCATION_SETTING), null,
+                    Double.toString(cursor.getDouble(INDEX_SAVED_COORD_LAT)),
+                    Double.toString(cursor.getDouble(INDEX_SAVED_COORD_LONG))));
+        }
+        cursor.close();
+        return fetches;
+    }
+
+    /**
+     * Downloads and parses every forecast, at most MAX_PARALLEL_FETCHES at a time. Each fetch
+     * records its own outcome, so one location failing does not stop the others.
+     */
+    private void fetchAll(ArrayList<ForecastFetch> fetches, final int julianStartDay,
+                          final SyncTrace trace) {
+        if (fetches.isEmpty()) {
+            return;
+        }
+        if (fetches.size() == 1) {
+            fetchForecast(fetches.get(0), julianStartDay, trace);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_PARALLEL_FETCHES, fetches.size()));
+        try {
+            ArrayList<Future<?>> pending = new ArrayList<Future<?>>(fetches.size());
+            for (final ForecastFetch fetch : fetches) {
+                pending.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetchForecast(fetch, julianStartDay, trace);
+                    }
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled; whatever finished is still written
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Error fetching forecast", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads one location's forecast and parses it into fetch.forecast, or records why that
+     * was not possible in fetch.status.
+     */
+    private void fetchForecast(ForecastFetch fetch, int julianStartDay, SyncTrace trace) {
         // These two need to be declared outside the try/catch
         // so that they can be closed in the finally block.
         HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        ForecastDownload download = null;
+        // The stage in progress, ended in the finally block with however the fetch turned out
+        SyncTrace.Span span = trace.begin(SyncTrace.STAGE_CONNECT, fetch.locationSetting);
 
         String format = "json";
         String units = "metric";
@@ -152,8 +465,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
             // Construct the URL for the OpenWeatherMap query
             // Possible parameters are avaiable at OWM's forecast API page, at
             // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
+            ForecastEndpoint endpoint = sEndpoint;
             final String QUERY_PARAM = "q";
             final String LAT_PARAM = "lat";
             final String LON_PARAM = "lon";
@@ -162,19 +474,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
             final String DAYS_PARAM = "cnt";
             final String APPID_PARAM = "APPID";
 
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
+            Uri.Builder uriBuilder = endpoint.buildUpon();
+            if (fetch.query == null) {
+                uriBuilder.appendQueryParameter(LAT_PARAM, fetch.latitude)
+                        .appendQueryParameter(LON_PARAM, fetch.longitude);
             } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+                uriBuilder.appendQueryParameter(QUERY_PARAM, fetch.query);
             }
 
             Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
@@ -183,485 +488,314 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
                     .build();
 
-            URL url = new URL(builtUri.toString());
-
             // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection = endpoint.open(builtUri);
             urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            addConditionalHeaders(urlConnection, fetch.locationSetting);
+            ForecastDownload.requestCompression(urlConnection);
             urlConnection.connect();
 
-            // Read the input stream into a String
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                fetch.notModified = true;
+                fetch.status = LOCATION_STATUS_OK;
+                return;
+            }
+            @SyncRetryPolicy.Failure int httpFailure = SyncRetryPolicy.classifyHttpStatus(responseCode);
+            if (httpFailure != SyncRetryPolicy.FAILURE_NONE) {
+                Log.e(LOG_TAG, "Forecast request for " + fetch.locationSetting + " failed with HTTP "
+                        + responseCode);
+                fetch.fail(httpFailure);
+                fetch.retryAfterSeconds =
+                        parseRetryAfter(urlConnection.getHeaderField(HEADER_RETRY_AFTER));
+                return;
+            }
+
+            span.end(SyncTrace.OUTCOME_OK);
+            span = trace.begin(SyncTrace.STAGE_DOWNLOAD, fetch.locationSetting);
+
             InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
             if (inputStream == null) {
                 // Nothing to do.
                 return;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+            // The forecast is parsed straight off the connection; an empty stream surfaces as an
+            // EOFException from the parser and is treated like any other failed download.
+            download = new ForecastDownload(inputStream, urlConnection.getContentEncoding());
+            Reader reader = new InputStreamReader(download.getStream(), "UTF-8");
+            ForecastCollector forecast = new ForecastCollector(julianStartDay);
+            int messageCode = ForecastJsonParser.parse(reader, forecast);
+            span.setBytes(download.getWireBytes()).setRows(forecast.days.size());
+            Log.d(LOG_TAG, "Forecast download for " + fetch.locationSetting + ": "
+                    + download.getWireBytes() + " bytes on the wire, "
+                    + download.getDecodedBytes() + " bytes decoded");
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            // do we have an error?
+            switch (messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    fetch.forecast = forecast;
+                    fetch.eTag = urlConnection.getHeaderField(HEADER_ETAG);
+                    fetch.lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+                    fetch.status = LOCATION_STATUS_OK;
+                    break;
+                default:
+                    // OWM can report an error inside a 200 response
+                    @SyncRetryPolicy.Failure int failure = SyncRetryPolicy.classifyHttpStatus(messageCode);
+                    fetch.fail(failure == SyncRetryPolicy.FAILURE_NONE
+                            ? SyncRetryPolicy.FAILURE_SERVER : failure);
+                    break;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+        } catch (UnknownHostException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            fetch.fail(SyncRetryPolicy.FAILURE_DNS);
+        } catch (SocketTimeoutException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            fetch.fail(SyncRetryPolicy.FAILURE_TIMEOUT);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            fetch.fail(SyncRetryPolicy.FAILURE_NETWORK);
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            fetch.fail(SyncRetryPolicy.FAILURE_MALFORMED);
         } finally {
+            span.end(fetch.notModified
+                    ? SyncTrace.OUTCOME_NOT_MODIFIED : SyncTrace.getOutcome(fetch.failure));
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
-            if (reader != null) {
+            if (download != null) {
                 try {
-                    reader.close();
+                    download.close();
                 } catch (final IOException e) {
                     Log.e(LOG_TAG, "Error closing stream", e);
                 }
             }
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Writes every forecast that was fetched as one batch, which the provider applies in a
+     * single transaction: readers see either the old forecasts or the new ones, and observers
+     * reload once rather than once per write.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return the number of the preferred location's days the batch inserted or changed
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
-            mGoogleApiClient = new GoogleApiClient.Builder(context)
-                    .addApi(Wearable.API)
-                    .addConnectionCallbacks(this)
-                    .addOnConnectionFailedListener(this)
-                    .build();
-            mGoogleApiClient.connect();
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+    private int storeForecasts(ArrayList<ForecastFetch> fetches, ForecastFetch preferred,
+                               int julianStartDay)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ForecastFetch fetch : fetches) {
+            if (fetch.forecast == null || fetch.forecast.days.size() == 0) {
+                continue;
+            }
+            ForecastCollector forecast = fetch.forecast;
+
+            // Each location comes first; the provider hands back the existing row if we
+            // already have it, and the location's other operations back-reference its id.
+            int locationOperation = operations.size();
+            operations.add(buildAddLocation(fetch.locationSetting,
+                    forecast.cityName, forecast.cityLatitude, forecast.cityLongitude));
+
+            fetch.firstDayOperation = operations.size();
+            for (ContentValues weatherValues : forecast.days) {
+                operations.add(ContentProviderOperation.newInsert(
+                        WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValues(weatherValues)
+                        .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                                locationOperation)
+                        .build());
             }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+            // Only remember the validators once the forecast they describe has been stored.
+            // Syncing the preferred location is also what puts it in the saved set.
+            ContentProviderOperation.Builder validators =
+                    buildStoreValidators(fetch.eTag, fetch.lastModified, locationOperation);
+            if (fetch == preferred) {
+                validators.withValue(WeatherContract.LocationEntry.COLUMN_SAVED_AT,
+                        System.currentTimeMillis());
             }
+            operations.add(validators.build());
+        }
+        if (operations.isEmpty()) {
+            return 0;
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                try {
-                    sendWeatherDataToWearable();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        // The location just synced goes to the front of the saved set, so the set stays bounded
+        // by dropping whatever has fallen off its end.  Their rows and forecasts stay until the
+        // old days are deleted, they are just no longer fetched.
+        operations.add(ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValue(WeatherContract.LocationEntry.COLUMN_SAVED_AT, null)
+                .withSelection(EXPIRED_SAVED_LOCATIONS_SELECTION, null)
+                .build());
+
+        // delete old data so we don't build up an endless history
+        operations.add(ContentProviderOperation.newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withSelection(OLD_WEATHER_SELECTION,
+                        new String[] {Long.toString(new Time().setJulianDay(julianStartDay-1))})
+                .build());
+
+        ContentProviderResult[] results = getContext().getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        // Only the preferred location's days count. The delete covers every saved location, and
+        // dropping yesterday is not a change anyone shows.
+        int changed = 0;
+        if (preferred.forecast != null) {
+            // Each day's insert counts if it wrote the row
+            for (int i = 0; i < preferred.forecast.days.size(); i++) {
+                if (!WeatherContract.WeatherEntry.isUnchangedUri(
+                        results[preferred.firstDayOperation + i].uri)) {
+                    changed++;
                 }
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
         }
-
-//        if (mGoogleApiClient != null){
-//            mGoogleApiClient.disconnect();
-//        }
+        return changed;
     }
 
+    /**
+     * One location's part of a sync: what to ask OWM for and what came back.
+     */
+    private static class ForecastFetch {
+        final String locationSetting;
+        // Either the query OWM is asked for, or null to ask by latitude and longitude
+        final String query;
+        final String latitude;
+        final String longitude;
+
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        @SyncRetryPolicy.Failure int failure = SyncRetryPolicy.FAILURE_NONE;
+        // How long the server asked us to wait before trying again, in seconds, or 0
+        long retryAfterSeconds;
+        boolean notModified;
+        ForecastCollector forecast;
+        String eTag;
+        String lastModified;
+        // Where this location's day inserts start in the batch storeForecasts writes
+        int firstDayOperation;
+
+        ForecastFetch(String locationSetting, String query, String latitude, String longitude) {
+            this.locationSetting = locationSetting;
+            this.query = query;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
 
-
-    private void updateWidgets() {
-        Context context = getContext();
-        // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
-        context.sendBroadcast(dataUpdatedIntent);
+        void fail(@SyncRetryPolicy.Failure int failure) {
+            this.failure = failure;
+            status = SyncRetryPolicy.getLocationStatus(failure);
+        }
     }
 
-    private void sendWeatherDataToWearable() throws ExecutionException, InterruptedException {
-        Context mContext = getContext();
-        String locationQuery = Utility.getPreferredLocation(mContext);
-
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = mContext.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+    /**
+     * Collects the days handed out by {@link ForecastJsonParser}, stamping each one with its
+     * normalized UTC date. The location key is filled in when the days are written, from the
+     * location row the same batch inserts.
+     */
+    private static class ForecastCollector implements ForecastJsonParser.Callback {
+        final ArrayList<ContentValues> days = new ArrayList<ContentValues>();
+        // now we work exclusively in UTC
+        final Time dayTime = new Time();
+        final int julianStartDay;
+
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+
+        ForecastCollector(int julianStartDay) {
+            this.julianStartDay = julianStartDay;
+        }
 
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-            int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-            Resources resources = mContext.getResources();
-            int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-            String artUrl = Utility.getArtUrlForWeatherCondition(mContext, weatherId);
-
-            int iconWidth = 144;
-            int iconHeight = 144;
-
-            Bitmap iconBitmap = Glide.with(mContext).load(artUrl).asBitmap().into(iconWidth, iconHeight).get();
-
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            iconBitmap.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-            Asset asset = Asset.createFromBytes(byteArrayOutputStream.toByteArray());
-
-            String tempHigh = Utility.formatTemperature(mContext, high);
-            String tempLow = Utility.formatTemperature(mContext, low);
-
-            PutDataMapRequest putDataMapReq = PutDataMapRequest.create(mContext.getString(R.string.Data_Path));
-            putDataMapReq.getDataMap().putString(mContext.getString(R.string.temp_high_key), tempHigh);
-            putDataMapReq.getDataMap().putString(mContext.getString(R.string.Temp_Low_Key), tempLow);
-            putDataMapReq.getDataMap().putLong(mContext.getString(R.string.Time_Key), System.currentTimeMillis());
-            putDataMapReq.getDataMap().putAsset(mContext.getString(R.string.Weather_Icon_Key), asset);
-
-            PutDataRequest putDataRequest = putDataMapReq.asPutDataRequest();
-            Wearable.DataApi.putDataItem(mGoogleApiClient, putDataRequest)
-                    .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                        @Override
-                        public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
-                            if (!dataItemResult.getStatus().isSuccess()){
-                                Log.e(LOG_TAG, "Failed to send weather data item to com.example.android.app");
-                            } else {
-                                Log.d(LOG_TAG, "Successfully sent weather data item to com.example.android.app");
-                            }
-
-                        }
-                    });
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            cityLatitude = lat;
+            cityLongitude = lon;
         }
-        cursor.close();
-    }
 
-    private void updateMuzei() {
-        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
-        // Muzei background on lower API level devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
+        @Override
+        public void onDay(int dayIndex, ContentValues weatherValues) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = dayTime.setJulianDay(julianStartDay + dayIndex);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+            days.add(weatherValues);
         }
     }
 
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
-        if ( displayNotifications ) {
-
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
+    /**
+     * Sends the validators stored with the last forecast for this location, if any, so the
+     * server can answer with 304 Not Modified when nothing has changed. Validators are only used
+     * while we still hold forecast data from today onwards; otherwise a 304 would leave us with
+     * nothing to show.
+     *
+     * @param urlConnection the connection to add the headers to, before it is connected
+     * @param locationSetting The location string used to request updates from the server.
+     */
+    private void addConditionalHeaders(HttpURLConnection urlConnection, String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = getContext().getContentResolver().query(
+                weatherUri, VALIDATOR_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        if (cursor.moveToFirst()) {
+            String eTag = cursor.getString(INDEX_ETAG);
+            String lastModified = cursor.getString(INDEX_LAST_MODIFIED);
+            if (eTag != null) {
+                urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
             }
         }
+        cursor.close();
+    }
+
+    /**
+     * Builds the operation that remembers the validators of the response a forecast was built
+     * from, on the location row inserted by the given operation of the same batch.
+     */
+    private static ContentProviderOperation.Builder buildStoreValidators(
+            String eTag, String lastModified, int locationOperation) {
+        return ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValue(WeatherContract.LocationEntry.COLUMN_ETAG, eTag)
+                .withValue(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified)
+                .withSelection(WeatherContract.LocationEntry._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, locationOperation);
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Helper method to build the insertion of a location in the weather database. If the
+     * location is already stored the provider returns the existing row instead.
      *
      * @param locationSetting The location string used to request updates from the server.
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @return an operation whose result holds the uri of the location row
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+    static ContentProviderOperation buildAddLocation(String locationSetting, String cityName,
+                                                     double lat, double lon) {
+        return ContentProviderOperation.newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValue(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName)
+                .withValue(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting)
+                .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat)
+                .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon)
+                .build();
+    }
 
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    /**
+     * Points every following sync at another forecast server, such as a local stub in a test or
+     * benchmark.
+     * @param endpoint where to fetch forecasts, or null to go back to the default
+     */
+    public static void setForecastEndpoint(@Nullable ForecastEndpoint endpoint) {
+        sEndpoint = endpoint != null ? endpoint : ForecastEndpoint.DEFAULT;
     }
 
     /**
@@ -683,6 +817,54 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         }
     }
 
+    /**
+     * Asks for an immediate sync on behalf of trigger, unless a sync requested moments ago will
+     * serve it or the stored forecast is still fresh.  See {@link SyncRequestCoalescer}.
+     * @param context The context used to access the account service
+     * @param trigger What is asking for the sync
+     */
+    public static void requestSync(Context context, @SyncRequestCoalescer.Trigger int trigger) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String lastRequestKey = context.getString(R.string.pref_last_sync_request_key);
+        String lastSuccessKey = context.getString(R.string.pref_last_sync_success_key);
+
+        @SyncRequestCoalescer.Decision int decision;
+        synchronized (sCoalescer) {
+            boolean syncInFlight = false;
+            if (trigger != SyncRequestCoalescer.TRIGGER_LOCATION_CHANGED) {
+                Account account = getSyncAccount(context);
+                String authority = context.getString(R.string.content_authority);
+                syncInFlight = account != null && (ContentResolver.isSyncPending(account, authority)
+                        || ContentResolver.isSyncActive(account, authority));
+            }
+
+            decision = sCoalescer.decide(trigger,
+                    prefs.getLong(lastRequestKey, 0), prefs.getLong(lastSuccessKey, 0),
+                    syncInFlight);
+            Log.d(SunshineSyncAdapter.class.getSimpleName(), "Sync request from trigger "
+                    + trigger + " " + SyncRequestCoalescer.describe(decision) + " ("
+                    + sCoalescer.getCount(decision) + " so far)");
+            if (decision == SyncRequestCoalescer.DECISION_SYNC) {
+                SharedPreferences.Editor editor = prefs.edit()
+                        .putLong(lastRequestKey, System.currentTimeMillis());
+                if (trigger == SyncRequestCoalescer.TRIGGER_LOCATION_CHANGED) {
+                    // What was synced last is for another location, so it says nothing about
+                    // freshness
+                    editor.remove(lastSuccessKey);
+                }
+                editor.apply();
+            }
+        }
+
+        if (decision == SyncRequestCoalescer.DECISION_SYNC) {
+            syncImmediately(context);
+        } else if (trigger == SyncRequestCoalescer.TRIGGER_WEARABLE) {
+            // A new watch face may have nothing stored at all, and the next sync can be hours
+            // off, so send it what we have. If a sync is under way, what it sends replaces this.
+            ForecastConsumers.pushStoredForecastToWearable(context);
+        }
+    }
+
     /**
      * Helper method to have the sync adapter sync immediately
      * @param context The context used to access the account service
@@ -0,0 +1,181 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work that follows a committed sync, such as waking the widgets or sending the forecast
+ * to the wearable, off the sync adapter's thread.
+ *
+ * Each piece of work is a {@link Job} with a name and a timeout. Jobs run side by side on a small
+ * pool of background threads, so the sync adapter hands the SyncManager back its thread as soon
+ * as the forecast is stored, and one slow job, typically an image download, does not hold up the
+ * others. A job that runs past its timeout is interrupted. A job submitted while an older job of
+ * the same name is still waiting or running replaces it, since the older one would only deliver
+ * a stale forecast. When too many jobs are already waiting, new ones are dropped rather than
+ * queued without bound.
+ *
+ * Every job is traced as its own stage of the sync that submitted it, including a job replaced
+ * before it got a thread.
+ */
+public class SyncFanOut {
+
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    // Idle threads are let go after this long, so nothing is held between syncs
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * One consumer of a newly stored forecast.
+     */
+    public interface Job {
+        /**
+         * Does the work. Should give up promptly when its thread is interrupted.
+         */
+        void run() throws Exception;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledExecutorService mWatchdog;
+    private final ContentResolver mContentResolver;
+    private final HashMap<String, JobRunner> mPending = new HashMap<String, JobRunner>();
+
+    /**
+     * @param contentResolver where job spans are stored
+     * @param threads how many jobs may run at once
+     * @param queueCapacity how many jobs may wait for a thread before new ones are dropped
+     */
+    public SyncFanOut(ContentResolver contentResolver, int threads, int queueCapacity) {
+        mContentResolver = contentResolver;
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new BackgroundThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory());
+    }
+
+    /**
+     * Queues a job, replacing any job of the same name that has not finished yet.
+     *
+     * @param name the job's name, which is also its stage in the sync trace
+     * @param timeoutMillis how long the job may run before it is interrupted
+     * @param trace the trace of the sync the job belongs to
+     */
+    public void submit(String name, long timeoutMillis, Job job, SyncTrace trace) {
+        JobRunner runner = new JobRunner(name, timeoutMillis, job, trace);
+        FutureTask<Void> task = new FutureTask<Void>(runner, null);
+        runner.mTask = task;
+        synchronized (mPending) {
+            JobRunner previous = mPending.put(name, runner);
+            // A job that had not started yet never runs, so it is traced here instead
+            if (previous != null && previous.mTask.cancel(true) && previous.claim()) {
+                previous.mTrace.begin(name, null).end(SyncTrace.OUTCOME_CANCELLED);
+                previous.mTrace.store(mContentResolver);
+            }
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "Too much work waiting, dropping " + name);
+                mPending.remove(name);
+                trace.begin(name, null).end(SyncTrace.OUTCOME_DROPPED);
+                trace.store(mContentResolver);
+            }
+        }
+    }
+
+    private void onFinished(String name, JobRunner runner) {
+        synchronized (mPending) {
+            if (mPending.get(name) == runner) {
+                mPending.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Runs a job on a pool thread, with a watchdog standing by to interrupt it.
+     */
+    private class JobRunner implements Runnable {
+        private final String mName;
+        private final long mTimeoutMillis;
+        private final Job mJob;
+        private final SyncTrace mTrace;
+        private FutureTask<Void> mTask;
+        // Taken by whichever comes first: the job starting, or its being replaced before that
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+        JobRunner(String name, long timeoutMillis, Job job, SyncTrace trace) {
+            mName = name;
+            mTimeoutMillis = timeoutMillis;
+            mJob = job;
+            mTrace = trace;
+        }
+
+        /**
+         * @return true if the job had not started, and now never will
+         */
+        boolean claim() {
+            return mClaimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (!claim()) {
+                // Replaced just as it was starting, and already traced as cancelled
+                return;
+            }
+            final SyncTrace.Span span = mTrace.begin(mName, null);
+            ScheduledFuture<?> watchdog = mWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(LOG_TAG, mName + " took longer than " + mTimeoutMillis + " ms");
+                    span.end(SyncTrace.OUTCOME_TIMEOUT);
+                    mTask.cancel(true);
+                }
+            }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+
+            String outcome = SyncTrace.OUTCOME_OK;
+            try {
+                mJob.run();
+            } catch (InterruptedException e) {
+                // Ended as timed out by the watchdog, or replaced by a newer job
+                outcome = SyncTrace.OUTCOME_CANCELLED;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error running " + mName, e);
+                outcome = SyncTrace.OUTCOME_FAILED;
+            } finally {
+                watchdog.cancel(false);
+                span.end(outcome);
+                mTrace.store(mContentResolver);
+                onFinished(mName, this);
+            }
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG + " #" + mCount.incrementAndGet());
+        }
+    }
+}
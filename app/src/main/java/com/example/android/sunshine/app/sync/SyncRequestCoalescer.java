@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Decides whether a request for an immediate sync should really reach the SyncManager.
+ *
+ * The watch face asks for the forecast every time it is created, and it is created often, so
+ * without this every restart would wake the radio for a full sync. Requests that arrive within a
+ * short window of the last one we passed on, or while a sync is already pending or running, are
+ * merged into it. Requests that arrive while the last successful sync is still fresh are dropped,
+ * since the provider already holds what the sync would fetch. A new location has nothing stored
+ * yet, so a location change is always passed on.
+ *
+ * The coalescer only decides and counts; the sync adapter keeps the times it decides on.
+ */
+public class SyncRequestCoalescer {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({TRIGGER_LOCATION_CHANGED, TRIGGER_WEARABLE})
+    public @interface Trigger {}
+
+    // The user picked a new location
+    public static final int TRIGGER_LOCATION_CHANGED = 0;
+    // The watch face asked for the forecast
+    public static final int TRIGGER_WEARABLE = 1;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({DECISION_SYNC, DECISION_MERGED, DECISION_FRESH})
+    public @interface Decision {}
+
+    // Pass the request on to the SyncManager
+    public static final int DECISION_SYNC = 0;
+    // A sync requested moments ago, or already under way, will serve this request too
+    public static final int DECISION_MERGED = 1;
+    // The last successful sync is recent enough that another would fetch the same forecast
+    public static final int DECISION_FRESH = 2;
+
+    private static final int DECISION_COUNT = 3;
+
+    private final SyncScheduler.Clock mClock;
+    private final long mWindowMillis;
+    private final long mFreshMillis;
+    private final int[] mCounts = new int[DECISION_COUNT];
+
+    /**
+     * @param clock where to read the current time
+     * @param windowMillis requests this soon after the last one passed on are merged into it
+     * @param freshMillis requests this soon after the last successful sync are dropped
+     */
+    public SyncRequestCoalescer(SyncScheduler.Clock clock, long windowMillis, long freshMillis) {
+        mClock = clock;
+        mWindowMillis = windowMillis;
+        mFreshMillis = freshMillis;
+    }
+
+    /**
+     * @param trigger what asked for the sync
+     * @param lastRequestMillis when the last request was passed on, or 0 if never
+     * @param lastSuccessMillis when the last sync succeeded, or 0 if never
+     * @param syncInFlight true if a sync is already pending or running
+     * @return what to do with the request
+     */
+    public synchronized @Decision int decide(@Trigger int trigger, long lastRequestMillis,
+                                             long lastSuccessMillis, boolean syncInFlight) {
+        @Decision int decision;
+        long now = mClock.currentTimeMillis();
+        if (trigger == TRIGGER_LOCATION_CHANGED) {
+            decision = DECISION_SYNC;
+        } else if (syncInFlight || isWithin(now, lastRequestMillis, mWindowMillis)) {
+            decision = DECISION_MERGED;
+        } else if (isWithin(now, lastSuccessMillis, mFreshMillis)) {
+            decision = DECISION_FRESH;
+        } else {
+            decision = DECISION_SYNC;
+        }
+        mCounts[decision]++;
+        return decision;
+    }
+
+    /**
+     * @return how many requests have been given a decision since this coalescer was created
+     */
+    public synchronized int getCount(@Decision int decision) {
+        return mCounts[decision];
+    }
+
+    /**
+     * @return a short description of a decision, for the log
+     */
+    public static String describe(@Decision int decision) {
+        switch (decision) {
+            case DECISION_MERGED:
+                return "merged into a sync already requested";
+            case DECISION_FRESH:
+                return "dropped, the last sync is still fresh";
+            default:
+                return "requested";
+        }
+    }
+
+    // A time in the future means the clock was changed; don't let that hold syncs back
+    private static boolean isWithin(long now, long then, long span) {
+        return then > 0 && then <= now && now - then < span;
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+/**
+ * Decides whether, and how soon, a failed forecast sync should be retried.
+ *
+ * Failures are sorted into classes. Network trouble, server errors and throttling are transient:
+ * they are retried after an exponential backoff that grows with each consecutive failure and
+ * carries random jitter, so phones that all failed during the same outage do not all come back
+ * at the same moment. A location the server does not know and other client errors are
+ * permanent and are not retried; a payload that will not parse is retried a few times, in case
+ * it was cut off in transit, and then given up on.
+ */
+public class SyncRetryPolicy {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({FAILURE_NONE, FAILURE_DNS, FAILURE_TIMEOUT, FAILURE_NETWORK, FAILURE_SERVER,
+            FAILURE_THROTTLED, FAILURE_MALFORMED, FAILURE_NOT_FOUND, FAILURE_CLIENT})
+    public @interface Failure {}
+
+    public static final int FAILURE_NONE = 0;
+    // The forecast server's name could not be resolved, usually because we are offline
+    public static final int FAILURE_DNS = 1;
+    public static final int FAILURE_TIMEOUT = 2;
+    // Any other I/O error while connecting or reading
+    public static final int FAILURE_NETWORK = 3;
+    // HTTP 5xx
+    public static final int FAILURE_SERVER = 4;
+    // HTTP 429
+    public static final int FAILURE_THROTTLED = 5;
+    // The response did not parse as a forecast
+    public static final int FAILURE_MALFORMED = 6;
+    // The server does not know the location
+    public static final int FAILURE_NOT_FOUND = 7;
+    // Any other HTTP 4xx, such as a rejected API key
+    public static final int FAILURE_CLIENT = 8;
+
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    // Backoff before the first retry, in seconds, for each class of transient failure
+    static final long NETWORK_BACKOFF = 60;
+    static final long SERVER_BACKOFF = 2 * 60;
+    static final long THROTTLED_BACKOFF = 5 * 60;
+    static final long MALFORMED_BACKOFF = 2 * 60;
+    // No retry is ever put off longer than this, in seconds
+    static final long MAX_BACKOFF = 4 * 60 * 60;
+    // A payload that fails to parse this many times in a row is not a truncation
+    static final int MAX_MALFORMED_ATTEMPTS = 3;
+
+    private final Random mRandom;
+
+    public SyncRetryPolicy(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * @return the failure class for an HTTP status code, or FAILURE_NONE for a success
+     */
+    public static @Failure int classifyHttpStatus(int statusCode) {
+        if (statusCode < HttpURLConnection.HTTP_BAD_REQUEST) {
+            return FAILURE_NONE;
+        } else if (statusCode == HttpURLConnection.HTTP_NOT_FOUND) {
+            return FAILURE_NOT_FOUND;
+        } else if (statusCode == HTTP_TOO_MANY_REQUESTS) {
+            return FAILURE_THROTTLED;
+        } else if (statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            return FAILURE_SERVER;
+        }
+        return FAILURE_CLIENT;
+    }
+
+    /**
+     * @return the location status to show the user for a failure class
+     */
+    public static @SunshineSyncAdapter.LocationStatus int getLocationStatus(@Failure int failure) {
+        switch (failure) {
+            case FAILURE_NONE:
+                return SunshineSyncAdapter.LOCATION_STATUS_OK;
+            case FAILURE_NOT_FOUND:
+                return SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+            case FAILURE_MALFORMED:
+            case FAILURE_CLIENT:
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+            default:
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        }
+    }
+
+    /**
+     * @return a short name for a failure class, for the log and the sync trace
+     */
+    public static String describe(@Failure int failure) {
+        switch (failure) {
+            case FAILURE_NONE:
+                return "none";
+            case FAILURE_DNS:
+                return "dns";
+            case FAILURE_TIMEOUT:
+                return "timeout";
+            case FAILURE_NETWORK:
+                return "network";
+            case FAILURE_SERVER:
+                return "server";
+            case FAILURE_THROTTLED:
+                return "throttled";
+            case FAILURE_MALFORMED:
+                return "malformed";
+            case FAILURE_NOT_FOUND:
+                return "not_found";
+            default:
+                return "client";
+        }
+    }
+
+    /**
+     * @param failure the failure class of the latest attempt
+     * @param attempts how many attempts in a row have now failed, this one included
+     * @return true if the sync should be retried
+     */
+    public boolean shouldRetry(@Failure int failure, int attempts) {
+        switch (failure) {
+            case FAILURE_NONE:
+            case FAILURE_NOT_FOUND:
+            case FAILURE_CLIENT:
+                return false;
+            case FAILURE_MALFORMED:
+                return attempts < MAX_MALFORMED_ATTEMPTS;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @param failure the failure class of the latest attempt
+     * @param attempts how many attempts in a row have now failed, this one included
+     * @param retryAfterSeconds how long the server asked us to wait, or 0 if it did not say
+     * @return how many seconds to wait before retrying
+     */
+    public long getBackoffSeconds(@Failure int failure, int attempts, long retryAfterSeconds) {
+        long base;
+        switch (failure) {
+            case FAILURE_SERVER:
+                base = SERVER_BACKOFF;
+                break;
+            case FAILURE_THROTTLED:
+                base = THROTTLED_BACKOFF;
+                break;
+            case FAILURE_MALFORMED:
+                base = MALFORMED_BACKOFF;
+                break;
+            default:
+                base = NETWORK_BACKOFF;
+        }
+
+        // base, 2 * base, 4 * base, ... capped, without overflowing on long outages
+        int doublings = Math.min(Math.max(attempts - 1, 0), 30);
+        long backoff = Math.min(MAX_BACKOFF, base << doublings);
+
+        // Wait somewhere between half and all of it
+        long half = backoff / 2;
+        backoff = half + (long) (mRandom.nextDouble() * (backoff - half));
+
+        // A server that says when to come back is not asked again any sooner
+        return Math.min(MAX_BACKOFF, Math.max(backoff, retryAfterSeconds));
+    }
+}
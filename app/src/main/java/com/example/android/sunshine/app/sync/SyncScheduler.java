@@ -0,0 +1,124 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Picks how long to wait before the next periodic sync.
+ *
+ * Starting from a base interval, the wait is stretched when the last sync found little had
+ * changed, overnight, when nothing on screen shows the forecast and when the battery is low, and
+ * shortened when the forecast is moving, in the morning, while a widget or the watch face is
+ * showing it and while the phone is charging. The result is always kept within the minimum and
+ * maximum the scheduler was built with.
+ *
+ * The scheduler only does arithmetic; the sync adapter gathers the {@link Conditions}. Time comes
+ * from a {@link Clock}, so tests can pin it.
+ */
+public class SyncScheduler {
+
+    /**
+     * Where the scheduler reads the current time.
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * What the scheduler is told about the last sync and the device.
+     */
+    public static class Conditions {
+        // How much of the forecast the last sync changed, from 0 (nothing) to 1 (every day)
+        public float volatility;
+        public boolean widgetsActive;
+        public boolean watchActive;
+        public boolean charging;
+        public boolean batteryLow;
+    }
+
+    // Local hours, [start, end), in which the schedule is relaxed or tightened
+    static final int NIGHT_START_HOUR = 23;
+    static final int NIGHT_END_HOUR = 6;
+    static final int MORNING_END_HOUR = 9;
+
+    static final float NIGHT_FACTOR = 2f;
+    static final float MORNING_FACTOR = 0.75f;
+    static final float ACTIVE_SURFACE_FACTOR = 0.75f;
+    static final float NO_SURFACE_FACTOR = 1.5f;
+    static final float CHARGING_FACTOR = 0.75f;
+    static final float LOW_BATTERY_FACTOR = 2f;
+
+    private final Clock mClock;
+    private final TimeZone mTimeZone;
+    private final int mBaseInterval;
+    private final int mMinInterval;
+    private final int mMaxInterval;
+
+    /**
+     * @param clock where to read the current time
+     * @param timeZone the time zone that decides what counts as night and morning
+     * @param baseInterval the interval, in seconds, for average conditions
+     * @param minInterval the shortest interval, in seconds, that will ever be returned
+     * @param maxInterval the longest interval, in seconds, that will ever be returned
+     */
+    public SyncScheduler(Clock clock, TimeZone timeZone,
+                         int baseInterval, int minInterval, int maxInterval) {
+        if (minInterval <= 0 || minInterval > maxInterval) {
+            throw new IllegalArgumentException("Bad sync interval bounds: " + minInterval
+                    + " to " + maxInterval);
+        }
+        mClock = clock;
+        mTimeZone = timeZone;
+        mBaseInterval = baseInterval;
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+    }
+
+    /**
+     * @return the number of seconds to wait before the next sync
+     */
+    public int getNextInterval(Conditions conditions) {
+        float volatility = Math.max(0f, Math.min(1f, conditions.volatility));
+        // 1.5 times the base when nothing changed, half of it when everything did
+        float interval = mBaseInterval * (1.5f - volatility);
+
+        int hour = getLocalHour();
+        if (hour >= NIGHT_START_HOUR || hour < NIGHT_END_HOUR) {
+            interval *= NIGHT_FACTOR;
+        } else if (hour < MORNING_END_HOUR) {
+            interval *= MORNING_FACTOR;
+        }
+
+        interval *= conditions.widgetsActive || conditions.watchActive
+                ? ACTIVE_SURFACE_FACTOR : NO_SURFACE_FACTOR;
+
+        if (conditions.charging) {
+            interval *= CHARGING_FACTOR;
+        } else if (conditions.batteryLow) {
+            interval *= LOW_BATTERY_FACTOR;
+        }
+
+        return Math.max(mMinInterval, Math.min(mMaxInterval, Math.round(interval)));
+    }
+
+    /**
+     * @return how far, in seconds, the sync may drift from the interval so it can be batched
+     * with other work
+     */
+    public static int getFlexTime(int interval) {
+        return interval / 3;
+    }
+
+    private int getLocalHour() {
+        Calendar calendar = Calendar.getInstance(mTimeZone);
+        calendar.setTimeInMillis(mClock.currentTimeMillis());
+        return calendar.get(Calendar.HOUR_OF_DAY);
+    }
+}
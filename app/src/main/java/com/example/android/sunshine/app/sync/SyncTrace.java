@@ -0,0 +1,168 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Times the stages of one sync, so we can see where sync time goes on real devices.
+ *
+ * The sync adapter opens a {@link Span} as each stage starts and ends it with an outcome, along
+ * with the bytes the stage downloaded or the rows it wrote. Spans may be opened and ended on any
+ * thread, since the forecasts for several locations are downloaded at once. When the sync is
+ * over, {@link #store(ContentResolver)} writes them all to the sync trace table in one go; the
+ * provider keeps only the last few syncs there. Work that goes on after the sync, such as
+ * updating the wearable, stores its own spans as it finishes.
+ */
+public class SyncTrace {
+
+    private static final String LOG_TAG = SyncTrace.class.getSimpleName();
+
+    // The whole sync, from start to finish
+    public static final String STAGE_SYNC = "sync";
+    // Opening the connection and waiting for the response status
+    public static final String STAGE_CONNECT = "connect";
+    // Reading the body; the forecast is parsed as it is read, so this includes parsing
+    public static final String STAGE_DOWNLOAD = "download";
+    // Writing every downloaded forecast to the provider in one batch
+    public static final String STAGE_STORE = "store";
+    public static final String STAGE_WIDGETS = "widgets";
+    public static final String STAGE_MUZEI = "muzei";
+    public static final String STAGE_NOTIFICATION = "notification";
+    public static final String STAGE_WEARABLE = "wearable";
+
+    public static final String OUTCOME_OK = "ok";
+    public static final String OUTCOME_SKIPPED = "skipped";
+    // Nothing was fetched; the forecast already stored was passed on, as after a location switch
+    public static final String OUTCOME_STORED = "stored";
+    public static final String OUTCOME_NOT_MODIFIED = "not_modified";
+    public static final String OUTCOME_FAILED = "failed";
+    public static final String OUTCOME_TIMEOUT = "timeout";
+    // Replaced by the same work for a newer sync before it finished
+    public static final String OUTCOME_CANCELLED = "cancelled";
+    // Not run at all, because too much work was already waiting
+    public static final String OUTCOME_DROPPED = "dropped";
+
+    /**
+     * One stage of the sync, timed from when it was opened until {@link #end(String)}.
+     */
+    public class Span {
+        private final String mStage;
+        private final String mDetail;
+        private final long mStartMillis;
+        private Long mBytes;
+        private Integer mRows;
+        private boolean mEnded;
+
+        private Span(String stage, String detail) {
+            mStage = stage;
+            mDetail = detail;
+            mStartMillis = SystemClock.elapsedRealtime();
+        }
+
+        public Span setBytes(long bytes) {
+            mBytes = bytes;
+            return this;
+        }
+
+        public Span setRows(int rows) {
+            mRows = rows;
+            return this;
+        }
+
+        /**
+         * Records the span with its outcome. Only the first call counts, so a span can be ended
+         * where the stage succeeds and again, as a catch-all, in a finally block.
+         */
+        public synchronized void end(String outcome) {
+            if (mEnded) {
+                return;
+            }
+            mEnded = true;
+            long endMillis = SystemClock.elapsedRealtime();
+
+            ContentValues values = new ContentValues();
+            values.put(SyncTraceEntry.COLUMN_SYNC_ID, mSyncId);
+            values.put(SyncTraceEntry.COLUMN_STARTED_AT, mStartedAt);
+            values.put(SyncTraceEntry.COLUMN_STAGE, mStage);
+            values.put(SyncTraceEntry.COLUMN_DETAIL, mDetail);
+            values.put(SyncTraceEntry.COLUMN_START_OFFSET, mStartMillis - mSyncStartMillis);
+            values.put(SyncTraceEntry.COLUMN_DURATION, endMillis - mStartMillis);
+            values.put(SyncTraceEntry.COLUMN_BYTES, mBytes);
+            values.put(SyncTraceEntry.COLUMN_ROWS, mRows);
+            values.put(SyncTraceEntry.COLUMN_OUTCOME, outcome);
+            synchronized (mSpans) {
+                mSpans.add(values);
+            }
+        }
+    }
+
+    private final long mSyncId;
+    private final long mStartedAt;
+    private final long mSyncStartMillis;
+    private final ArrayList<ContentValues> mSpans = new ArrayList<ContentValues>();
+
+    public SyncTrace(Context context) {
+        mSyncId = nextSyncId(context);
+        mStartedAt = System.currentTimeMillis();
+        mSyncStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the next number from a counter kept in shared preferences, so that each sync's
+     * id is greater than the last one's even if two start in the same millisecond or the clock
+     * is set back
+     */
+    private static synchronized long nextSyncId(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String syncIdKey = context.getString(R.string.pref_last_sync_trace_id_key);
+        long syncId = prefs.getLong(syncIdKey, 0) + 1;
+        prefs.edit().putLong(syncIdKey, syncId).commit();
+        return syncId;
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @param detail what the stage works on, such as a location setting, or null
+     */
+    public Span begin(String stage, String detail) {
+        return new Span(stage, detail);
+    }
+
+    /**
+     * @return the outcome to record for a stage that ended with a fetch failure
+     */
+    public static String getOutcome(@SyncRetryPolicy.Failure int failure) {
+        return failure == SyncRetryPolicy.FAILURE_NONE
+                ? OUTCOME_OK : SyncRetryPolicy.describe(failure);
+    }
+
+    /**
+     * Writes the spans that have ended since the last call to the sync trace table. Tracing is
+     * only a diagnostic, so a failure to store it is logged rather than allowed to fail the sync.
+     */
+    public void store(ContentResolver contentResolver) {
+        ContentValues[] spans;
+        synchronized (mSpans) {
+            if (mSpans.isEmpty()) {
+                return;
+            }
+            spans = mSpans.toArray(new ContentValues[mSpans.size()]);
+            mSpans.clear();
+        }
+        try {
+            contentResolver.bulkInsert(SyncTraceEntry.CONTENT_URI, spans);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error storing sync trace", e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.WeatherArtCache;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The weather icons on the wearable, kept as one data item per condition under the icon path.
+ *
+ * Each icon is encoded once, at the size the watch face draws it, and sent once; after that the
+ * weather data item only names the condition and the watch looks the icon up. An icon is encoded
+ * and sent again only when the art pack or the size it was made from changes.
+ */
+class WearableIconStore {
+
+    private static final String LOG_TAG = WearableIconStore.class.getSimpleName();
+
+    // WebP can only be encoded with transparency from Jelly Bean MR2
+    private static final Bitmap.CompressFormat ICON_FORMAT =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.PNG;
+    private static final int ICON_QUALITY = 90;
+
+    // What each condition's icon on the wearable was made from, by condition, as far as this
+    // process knows, so the data layer need only be asked once for each
+    private static final HashMap<String, String> sSentIcons = new HashMap<String, String>();
+
+    private final Context mContext;
+    private final GoogleApiClient mGoogleApiClient;
+    private final int mIconSize;
+    private final long mTimeoutMillis;
+
+    /**
+     * @param googleApiClient a connected client with the wearable API
+     * @param iconSize the size the watch face draws icons at, in pixels
+     * @param timeoutMillis how long to wait for each call to the data layer
+     */
+    WearableIconStore(Context context, GoogleApiClient googleApiClient, int iconSize,
+            long timeoutMillis) {
+        mContext = context;
+        mGoogleApiClient = googleApiClient;
+        mIconSize = iconSize;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Makes sure the wearable has the icon for a condition, encoding and sending it if not.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return the key the wearable finds the icon under, or null if the condition has no art
+     */
+    String publish(int weatherId) throws IOException, InterruptedException {
+        String iconKey = Utility.getArtNameForWeatherCondition(weatherId);
+        if (iconKey == null) {
+            return null;
+        }
+        String source = getSource();
+        synchronized (sSentIcons) {
+            if (source.equals(sSentIcons.get(iconKey))) {
+                return iconKey;
+            }
+        }
+
+        String path = mContext.getString(R.string.Icon_Path) + "/" + iconKey;
+        String sourceKey = mContext.getString(R.string.Icon_Source_Key);
+        if (!source.equals(getSentSource(path, sourceKey))) {
+            Bitmap icon = WeatherArtCache.getInstance(mContext)
+                    .getArt(weatherId, mIconSize, mIconSize);
+            if (icon == null) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            icon.compress(ICON_FORMAT, ICON_QUALITY, bytes);
+
+            PutDataMapRequest putDataMapReq = PutDataMapRequest.create(path);
+            putDataMapReq.getDataMap().putAsset(mContext.getString(R.string.Icon_Asset_Key),
+                    Asset.createFromBytes(bytes.toByteArray()));
+            putDataMapReq.getDataMap().putString(sourceKey, source);
+            DataApi.DataItemResult result = Wearable.DataApi
+                    .putDataItem(mGoogleApiClient, putDataMapReq.asPutDataRequest())
+                    .await(mTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess()) {
+                throw new IOException("Failed to send the " + iconKey + " icon: "
+                        + result.getStatus());
+            }
+            Log.d(LOG_TAG, "Sent the " + iconKey + " icon, " + bytes.size() + " bytes");
+        }
+        synchronized (sSentIcons) {
+            sSentIcons.put(iconKey, source);
+        }
+        return iconKey;
+    }
+
+    /**
+     * @return what an icon is made from: the art pack and the size it is encoded at
+     */
+    private String getSource() {
+        String artPack = PreferenceManager.getDefaultSharedPreferences(mContext).getString(
+                mContext.getString(R.string.pref_art_pack_key),
+                mContext.getString(R.string.pref_art_pack_sunshine));
+        return artPack + "@" + mIconSize;
+    }
+
+    /**
+     * @return what the icon already in the data layer at the path was made from, or null if
+     * there is none
+     */
+    private String getSentSource(String path, String sourceKey) {
+        Uri uri = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).path(path).build();
+        DataItemBuffer dataItems = Wearable.DataApi.getDataItems(mGoogleApiClient, uri)
+                .await(mTimeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            if (!dataItems.getStatus().isSuccess()) {
+                return null;
+            }
+            for (DataItem dataItem : dataItems) {
+                DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
+                if (dataMap.containsKey(sourceKey)) {
+                    return dataMap.getString(sourceKey);
+                }
+            }
+            return null;
+        } finally {
+            dataItems.release();
+        }
+    }
+}
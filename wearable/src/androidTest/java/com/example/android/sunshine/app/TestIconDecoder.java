@@ -0,0 +1,59 @@
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+    Checks that icons are decoded straight to the size they are drawn at, whatever size they
+    were sent at.
+ */
+public class TestIconDecoder extends AndroidTestCase {
+
+    private static final int ICON_SIZE = 40;
+
+    private static byte[] encodeIcon(int width, int height) {
+        Bitmap icon = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        icon.eraseColor(Color.BLUE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        icon.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+        icon.recycle();
+        return bytes.toByteArray();
+    }
+
+    private static void assertDecodedSize(int sentSize) {
+        Bitmap icon = IconDecoder.decode(encodeIcon(sentSize, sentSize), ICON_SIZE);
+        assertNotNull(icon);
+        assertEquals("Error: a " + sentSize + " pixel icon was decoded to the wrong width",
+                ICON_SIZE, icon.getWidth());
+        assertEquals("Error: a " + sentSize + " pixel icon was decoded to the wrong height",
+                ICON_SIZE, icon.getHeight());
+        assertEquals(Color.BLUE, icon.getPixel(ICON_SIZE / 2, ICON_SIZE / 2));
+    }
+
+    public void testIconsAreDecodedToTheirSize() {
+        assertDecodedSize(ICON_SIZE);
+        assertDecodedSize(160);
+        assertDecodedSize(100);
+        assertDecodedSize(24);
+    }
+
+    public void testDecodedIconsAreNotScaledWhenDrawn() {
+        Bitmap icon = IconDecoder.decode(encodeIcon(100, 100), ICON_SIZE);
+        assertEquals(Bitmap.DENSITY_NONE, icon.getDensity());
+    }
+
+    public void testSampleSizeKeepsTheIconAtLeastItsSize() {
+        assertEquals(1, IconDecoder.getSampleSize(40, 40));
+        assertEquals(1, IconDecoder.getSampleSize(79, 40));
+        assertEquals(2, IconDecoder.getSampleSize(80, 40));
+        assertEquals(4, IconDecoder.getSampleSize(160, 40));
+        assertEquals(1, IconDecoder.getSampleSize(24, 40));
+    }
+
+    public void testOtherBytesAreNotDecoded() {
+        assertNull(IconDecoder.decode(new byte[] {1, 2, 3}, ICON_SIZE));
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.sunshine.app;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.test.AndroidTestCase;
+
+/*
+    Checks that only the glyphs of the time that changed are marked as changed, and that the
+    frames drawn are counted.
+ */
+public class TestTimeGlyphs extends AndroidTestCase {
+
+    private static final float X = 40;
+    private static final float Y = 70;
+
+    private TimeGlyphs mGlyphs;
+    private Paint mPaint;
+    private final Rect mDirty = new Rect();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPaint = new Paint();
+        mPaint.setTextSize(40);
+        mGlyphs = new TimeGlyphs();
+        mGlyphs.measure(mPaint);
+    }
+
+    private boolean update(String time) {
+        return mGlyphs.findDirtyRegion(time.toCharArray(), time.length(), X, Y, mDirty);
+    }
+
+    public void testFirstFrameRedrawsTheWholeTime() {
+        assertTrue(update("9:05"));
+        assertTrue(mDirty.left <= X);
+        assertTrue(mDirty.right >= X + mPaint.measureText("9:05"));
+        assertTrue(mDirty.top < Y && mDirty.bottom > Y);
+    }
+
+    public void testUnchangedTimeRedrawsNothing() {
+        update("9:05");
+        assertFalse(update("9:05"));
+    }
+
+    public void testBlinkRedrawsOnlyTheColon() {
+        update("9:05");
+        Rect whole = new Rect(mDirty);
+
+        assertTrue(update("9 05"));
+        assertTrue("Error: the hour was redrawn for a blink",
+                mDirty.left > whole.left);
+        assertTrue("Error: the minutes were redrawn for a blink",
+                mDirty.right < whole.right);
+        assertTrue(mDirty.width() < whole.width() / 2);
+    }
+
+    public void testLongerHourRedrawsEverythingAfterIt() {
+        update("9:59");
+        assertTrue(update("10:00"));
+        assertTrue(mDirty.left <= X);
+        assertTrue(mDirty.right >= X + mPaint.measureText("10:00"));
+    }
+
+    public void testInvalidateRedrawsTheWholeTime() {
+        update("9:05");
+        mGlyphs.invalidate();
+        assertTrue(update("9:05"));
+        assertTrue(mDirty.left <= X);
+        assertTrue(mDirty.right >= X + mPaint.measureText("9:05"));
+    }
+
+    public void testFramesAreCounted() {
+        Rect surface = new Rect(0, 0, 100, 100);
+        Rect region = new Rect(0, 0, 10, 20);
+        mGlyphs.recordFrame(surface, region, 0);
+        mGlyphs.recordFrame(surface, null, 500);
+        assertEquals(0, mGlyphs.getFramesPerSecond());
+
+        // The first full second is counted when the next one starts, with the whole surface
+        // drawn for every frame
+        mGlyphs.recordFrame(surface, region, 1000);
+        assertEquals(2, mGlyphs.getFramesPerSecond());
+        assertEquals(2 * 100 * 100, mGlyphs.getPixelsPerSecond());
+        assertEquals(10 * 20, mGlyphs.getChangedPixelsPerSecond());
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/*
+    Checks the time and date the watch face draws, and that working them out and drawing them
+    allocates nothing once the day's date has been formatted.
+ */
+public class TestWatchFaceText extends AndroidTestCase {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final int FRAMES = 600;
+
+    private WatchFaceText mText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mText = new WatchFaceText(mContext.getString(R.string.Date_Format), UTC);
+    }
+
+    private static long utcMillis(int year, int month, int day, int hour, int minute, int second) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private String formatTime(boolean colon) {
+        return new String(mText.getTimeChars(), 0, mText.formatTime(colon));
+    }
+
+    public void testTimeIsFormatted() {
+        mText.setTime(utcMillis(2016, Calendar.SEPTEMBER, 1, 9, 5, 7));
+        assertEquals("9:05", formatTime(true));
+        assertEquals("9 05", formatTime(false));
+        assertEquals(7, mText.getSecond());
+
+        mText.setTime(utcMillis(2016, Calendar.SEPTEMBER, 1, 23, 59, 59));
+        assertEquals("23:59", formatTime(true));
+
+        mText.setTime(utcMillis(2016, Calendar.SEPTEMBER, 2, 0, 0, 0));
+        assertEquals("0:00", formatTime(true));
+    }
+
+    public void testTimeFollowsTheTimeZone() {
+        long millis = utcMillis(2016, Calendar.SEPTEMBER, 1, 9, 5, 0);
+        mText.setTimeZone(TimeZone.getTimeZone("GMT+05:30"));
+        mText.setTime(millis);
+        assertEquals("14:35", formatTime(true));
+    }
+
+    public void testDateIsFormattedOncePerDay() {
+        mText.setTime(utcMillis(2016, Calendar.SEPTEMBER, 1, 0, 0, 0));
+        String date = mText.getDate();
+        mText.setTime(utcMillis(2016, Calendar.SEPTEMBER, 1, 23, 59, 59));
+        assertSame(date, mText.getDate());
+
+        mText.setTime(utcMillis(2016, Calendar.SEPTEMBER, 2, 0, 0, 0));
+        assertNotSame(date, mText.getDate());
+        assertFalse(date.equals(mText.getDate()));
+    }
+
+    public void testFramesDoNotAllocate() {
+        Bitmap bitmap = Bitmap.createBitmap(320, 320, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setTextSize(40);
+        long start = utcMillis(2016, Calendar.SEPTEMBER, 1, 8, 0, 0);
+
+        // The first frame of the day formats the date
+        mText.setTime(start);
+        canvas.drawText(mText.getTimeChars(), 0, mText.formatTime(true), 40, 70, paint);
+        canvas.drawText(mText.getDate(), 35, 100, paint);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        try {
+            for (int frame = 0; frame < FRAMES; frame++) {
+                mText.setTime(start + frame * 1000L);
+                int timeLength = mText.formatTime(mText.getSecond() % 2 == 0);
+                canvas.drawText(mText.getTimeChars(), 0, timeLength, 40, 70, paint);
+                canvas.drawText(mText.getDate(), 35, 100, paint);
+            }
+            assertEquals("Error: drawing a frame allocated",
+                    0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        bitmap.recycle();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+    Checks that the weather the phone sent is kept across instances, and when it is too old to
+    show without asking the phone for more.
+ */
+public class TestWeatherStore extends AndroidTestCase {
+
+    private static final long SENT_MILLIS = 1472716800000L;
+    // What the phone sends overnight, when it syncs every twelve hours
+    private static final long MAX_AGE_MILLIS = 16 * 60 * 60 * 1000L;
+
+    private WeatherStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new WeatherStore(mContext);
+        mStore.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.clear();
+        super.tearDown();
+    }
+
+    public void testNothingIsKeptAtFirst() {
+        assertNull(mStore.getTempHigh());
+        assertNull(mStore.getTempLow());
+        assertNull(mStore.getIconKey());
+        assertFalse(mStore.isFresh(SENT_MILLIS));
+    }
+
+    public void testWeatherIsKeptAcrossInstances() {
+        mStore.save("21°", "12°", "clear", SENT_MILLIS, MAX_AGE_MILLIS);
+
+        WeatherStore restored = new WeatherStore(mContext);
+        assertEquals("21°", restored.getTempHigh());
+        assertEquals("12°", restored.getTempLow());
+        assertEquals("clear", restored.getIconKey());
+        assertEquals(SENT_MILLIS, restored.getTimeMillis());
+        assertEquals(MAX_AGE_MILLIS, restored.getMaxAgeMillis());
+    }
+
+    public void testWeatherGoesStale() {
+        mStore.save("21°", "12°", null, SENT_MILLIS, MAX_AGE_MILLIS);
+        assertTrue(mStore.isFresh(SENT_MILLIS));
+        assertTrue("Error: the weather went stale before the phone's next sync was due",
+                mStore.isFresh(SENT_MILLIS + WeatherStore.DEFAULT_MAX_AGE_MILLIS));
+        assertTrue(mStore.isFresh(SENT_MILLIS + MAX_AGE_MILLIS - 1));
+        assertFalse(mStore.isFresh(SENT_MILLIS + MAX_AGE_MILLIS));
+        assertFalse("Error: weather from the future was taken as fresh",
+                mStore.isFresh(SENT_MILLIS - 1));
+    }
+
+    public void testIconIsKept() {
+        Bitmap icon = Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888);
+        icon.eraseColor(Color.RED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        icon.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+        mStore.saveIcon("clear", bytes.toByteArray());
+
+        Bitmap restored = new WeatherStore(mContext).loadIcon("clear", 40);
+        assertNotNull(restored);
+        assertEquals(40, restored.getWidth());
+        assertEquals(Color.RED, restored.getPixel(20, 20));
+        assertNull(mStore.loadIcon("rain", 40));
+    }
+}
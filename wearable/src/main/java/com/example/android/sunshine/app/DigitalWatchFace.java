@@ -22,20 +22,21 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.wearable.watchface.CanvasWatchFaceService;
 import android.support.wearable.watchface.WatchFaceStyle;
-import android.text.format.Time;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.SurfaceHolder;
@@ -48,6 +49,8 @@ import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
 import com.google.android.gms.wearable.Node;
@@ -56,11 +59,16 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.HashMap;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -68,6 +76,8 @@ import java.util.concurrent.TimeUnit;
  * low-bit ambient mode, the text is drawn without anti-aliasing in ambient mode.
  */
 public class DigitalWatchFace extends CanvasWatchFaceService {
+    private static final String LOG_TAG = DigitalWatchFace.class.getSimpleName();
+
     private static final Typeface NORMAL_TYPEFACE =
             Typeface.create(Typeface.SANS_SERIF, Typeface.NORMAL);
 
@@ -111,7 +121,15 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
 
     {
         private static final long TIMEOUT_MS = 1000;
+        private static final long ASSET_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+        // The size the weather icon is drawn at, in pixels
+        private static final int ICON_SIZE = 40;
+        // How long to wait for the phone to answer before asking it for the weather again
+        private static final long WEATHER_REQUEST_RETRY_MS = TimeUnit.MINUTES.toMillis(30);
         final Handler mUpdateTimeHandler = new EngineHandler(this);
+        // Set on the engine's thread once the engine is destroyed, so an icon the icon thread
+        // finishes afterwards is dropped instead of drawn
+        boolean mDestroyed;
         boolean mRegisteredTimeZoneReceiver = false;
         Paint mBackgroundPaint;
         Paint mTextPaint;
@@ -119,22 +137,54 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
         Paint mTempHighPaint;
         Paint mTempLowPaint;
         boolean mAmbient;
-        Time mTime;
-        SimpleDateFormat mDateFormat;
-        Calendar mCalendar;
+        WatchFaceText mText;
 
         String tempHigh;
         String tempLow;
+        // The last weather the phone sent, kept across restarts
+        WeatherStore mWeatherStore;
+        // When the phone was last asked for the weather, by the elapsed realtime clock
+        long mWeatherRequestedMs;
+        boolean mWeatherRequested;
+
+        volatile Bitmap iconBitmap;
+        // The key of the icon the phone last sent, and the icons loaded so far by key
+        volatile String mIconKey;
+        final HashMap<String, Bitmap> mIcons = new HashMap<>();
+        // Reads and decodes icons one at a time, off the engine's thread
+        final ExecutorService mIconExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "WatchFaceIcons");
+                    }
+                });
+        // The pending or running lookup of the icon to show, dropped when another is to be shown
+        Future<?> mIconLookup;
 
-        Bitmap iconBitmap;
+        // The background, date, temperatures and icon, drawn once for every frame that shows them
+        Bitmap mStaticLayer;
+        Canvas mStaticCanvas;
+        volatile boolean mStaticLayerInvalid = true;
+        // The date the static layer was drawn with
+        String mStaticLayerDate;
+        final Rect mSurfaceBounds = new Rect();
+        // The part of the time that changed since the last frame, counted for profiling
+        final Rect mDirtyRegion = new Rect();
+        final TimeGlyphs mTimeGlyphs = new TimeGlyphs();
 
 
 
         final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mTime.clear(intent.getStringExtra("time-zone"));
-                mTime.setToNow();
+                mText.setTimeZone(TimeZone.getTimeZone(intent.getStringExtra("time-zone")));
             }
         };
         float mXOffset;
@@ -196,22 +246,48 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
             mTempLowPaint = new Paint();
             mTempLowPaint = createTextPaint(resources.getColor(R.color.digital_text));
 
-            //default values for temp
-            tempHigh = "--";
-            tempLow = "--";
+            // Show the last weather straight away; the phone is only asked for more once connected,
+            // and only if it is stale
+            mWeatherStore = new WeatherStore(DigitalWatchFace.this);
+            restoreWeather();
 
-            sendAppMessage();
-
-            mTime = new Time();
-            mDateFormat = new SimpleDateFormat(getString(R.string.Date_Format));
-            mCalendar = Calendar.getInstance();
+            mText = new WatchFaceText(getString(R.string.Date_Format), TimeZone.getDefault());
         }
 
 
 
+        /**
+         * Shows the weather kept from before, or placeholders if there is none.
+         */
+        private void restoreWeather() {
+            String storedHigh = mWeatherStore.getTempHigh();
+            String storedLow = mWeatherStore.getTempLow();
+            tempHigh = storedHigh != null ? storedHigh : "--";
+            tempLow = storedLow != null ? storedLow : "--";
+
+            String iconKey = mWeatherStore.getIconKey();
+            mIconKey = iconKey;
+            if (iconKey != null) {
+                // A single small file, read here so the first frame already has the icon
+                Bitmap icon = mWeatherStore.loadIcon(iconKey, ICON_SIZE);
+                if (icon != null) {
+                    storeIcon(iconKey, icon);
+                } else {
+                    showIcon(iconKey);
+                }
+            }
+        }
+
         @Override
         public void onDestroy() {
-            mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            mDestroyed = true;
+            // Icons published but not yet stored go too
+            mUpdateTimeHandler.removeCallbacksAndMessages(null);
+            mIconExecutor.shutdownNow();
+            if (mStaticLayer != null) {
+                mStaticLayer.recycle();
+                mStaticLayer = null;
+            }
             super.onDestroy();
         }
 
@@ -232,8 +308,7 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
                 mGoogleApiClient.connect();
 
                 // Update time zone in case it changed while we weren't visible.
-                mTime.clear(TimeZone.getDefault().getID());
-                mTime.setToNow();
+                mText.setTimeZone(TimeZone.getDefault());
             } else {
                 unregisterReceiver();
 
@@ -290,8 +365,10 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
 
             mDatePaint.setTextSize(dateSize);
             mTextPaint.setTextSize(textSize);
+            mTimeGlyphs.measure(mTextPaint);
             mTempHighPaint.setTextSize(dateSize);
             mTempLowPaint.setTextSize(dateSize);
+            invalidateStaticLayer();
 
         }
 
@@ -315,6 +392,7 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
                 if (mLowBitAmbient) {
                     mTextPaint.setAntiAlias(!inAmbientMode);
                 }
+                invalidateStaticLayer();
                 invalidate();
             }
 
@@ -323,40 +401,79 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
             updateTimer();
         }
 
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+            if (mStaticLayer != null) {
+                mStaticLayer.recycle();
+            }
+            mStaticLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mStaticCanvas = new Canvas(mStaticLayer);
+            mSurfaceBounds.set(0, 0, width, height);
+            invalidateStaticLayer();
+        }
+
         @Override
         public void onDraw(Canvas canvas, Rect bounds) {
-            // Draw the background.
-            if (isInAmbientMode()) {
-                canvas.drawColor(Color.BLACK);
-            } else {
-                canvas.drawRect(0, 0, bounds.width(), bounds.height(), mBackgroundPaint);
+            // Nothing in here may allocate: it runs every second, and GC pauses on a watch show
+            // up as stutter.
+            boolean ambient = isInAmbientMode();
+            mText.setTime(System.currentTimeMillis());
+
+            // Everything but the time only changes now and then, so it is drawn once into the
+            // static layer and copied from there. The date is compared by identity, since it is
+            // only formatted again when the day changes.
+            String date = mText.getDate();
+            if (mStaticLayerInvalid || date != mStaticLayerDate) {
+                mStaticLayerInvalid = false;
+                mStaticLayerDate = date;
+                drawStaticLayer(mStaticCanvas, ambient);
+                mTimeGlyphs.invalidate();
             }
+            canvas.drawBitmap(mStaticLayer, 0, 0, null);
 
-            // Draw H:MM in ambient mode or H:MM:SS in interactive mode.
-            mTime.setToNow();
-            String text;
+            // Draw H:MM, from a buffer that is reused for every frame
             // let the colon in the time "blink" every second in interactive mode
-            if (mTime.second % 2 == 0 || isInAmbientMode()){
-                text = String.format(getString(R.string.Time_With_Colon), mTime.hour, mTime.minute);
-            } else {
-                text = String.format(getString(R.string.Time_No_Colon), mTime.hour, mTime.minute);
-            }
+            int timeLength = mText.formatTime(mText.getSecond() % 2 == 0 || ambient);
+            // The surface is handed over whole every frame, so the whole time is drawn; what
+            // changed is only counted, to show how little of each frame does
+            boolean changed = mTimeGlyphs.findDirtyRegion(mText.getTimeChars(), timeLength,
+                    mXOffset, mYOffset, mDirtyRegion);
+            mTimeGlyphs.draw(canvas, mTextPaint);
+            mTimeGlyphs.recordFrame(mSurfaceBounds, changed ? mDirtyRegion : null,
+                    SystemClock.elapsedRealtime());
+        }
 
-            canvas.drawText(text, mXOffset, mYOffset, mTextPaint);
+        /**
+         * Draws the background, date, temperatures and icon.
+         */
+        private void drawStaticLayer(Canvas canvas, boolean ambient) {
+            // Draw the background.
+            if (ambient) {
+                canvas.drawColor(Color.BLACK);
+                return;
+            }
+            canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), mBackgroundPaint);
 
-            if (!isInAmbientMode()){
-                String dateText = mDateFormat.format(mCalendar.getTime());
-                canvas.drawText(dateText, mDateXOffset, mDateYOffset, mDatePaint);
+            canvas.drawText(mText.getDate(), mDateXOffset, mDateYOffset, mDatePaint);
 
-                canvas.drawText(tempHigh, mTempHighXOffset, mTempHighYOffset, mTempHighPaint);
-                canvas.drawText(tempLow, mTempLowXOffset, mTempLowYOffset, mTempLowPaint);
+            canvas.drawText(tempHigh, mTempHighXOffset, mTempHighYOffset, mTempHighPaint);
+            canvas.drawText(tempLow, mTempLowXOffset, mTempLowYOffset, mTempLowPaint);
 
-                if (iconBitmap != null){
-                    canvas.drawBitmap(iconBitmap, mIconXOffset, mIconYOffset, null);
-                }
+            Bitmap icon = iconBitmap;
+            if (icon != null){
+                canvas.drawBitmap(icon, mIconXOffset, mIconYOffset, null);
             }
         }
 
+        /**
+         * Has the static layer drawn again on the next frame, after something on it changed.
+         * Safe to call from any thread.
+         */
+        private void invalidateStaticLayer() {
+            mStaticLayerInvalid = true;
+        }
+
         /**
          * Starts the {@link #mUpdateTimeHandler} timer if it should be running and isn't currently
          * or stops it if it shouldn't be running but currently is.
@@ -381,6 +498,11 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
          */
         private void handleUpdateTimeMessage() {
             invalidate();
+            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                Log.v(LOG_TAG, "Drawing " + mTimeGlyphs.getFramesPerSecond() + " frames, "
+                        + mTimeGlyphs.getPixelsPerSecond() + " pixels a second, "
+                        + mTimeGlyphs.getChangedPixelsPerSecond() + " of them changed");
+            }
             if (shouldTimerBeRunning()) {
                 long timeMs = System.currentTimeMillis();
                 long delayMs = INTERACTIVE_UPDATE_RATE_MS
@@ -393,6 +515,7 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
         @Override
         public void onDataChanged(DataEventBuffer dataEvents) {
             Log.d("onDataChanged", "onDataChanged Triggered");
+            String iconPathPrefix = getString(R.string.Icon_Path) + "/";
             for (DataEvent dataEvent : dataEvents) {
                 if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
                     DataMap dataMap = DataMapItem.fromDataItem(dataEvent.getDataItem()).getDataMap();
@@ -400,47 +523,208 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
                     if (path.equals(getString(R.string.Data_Path))) {
                         tempHigh = dataMap.getString(getString(R.string.Temp_High_Key));
                         tempLow = dataMap.getString(getString(R.string.Temp_Low_Key));
-
-                        Asset iconAsset = dataMap.getAsset(getString(R.string.Weather_Icon_Key));
-                        loadBitmap(iconAsset);
+                        String iconKey = dataMap.getString(getString(R.string.Weather_Icon_Key));
+                        mWeatherStore.save(tempHigh, tempLow, iconKey,
+                                dataMap.getLong(getString(R.string.Time_Key),
+                                        System.currentTimeMillis()),
+                                dataMap.getLong(getString(R.string.Max_Age_Key),
+                                        WeatherStore.DEFAULT_MAX_AGE_MILLIS));
+
+                        showIcon(iconKey);
+                        invalidateStaticLayer();
+                        invalidate();
+                    } else if (path.startsWith(iconPathPrefix)) {
+                        // A new or updated icon; the weather item may already be waiting for it
+                        Asset iconAsset = dataMap.getAsset(getString(R.string.Icon_Asset_Key));
+                        loadIcon(path.substring(iconPathPrefix.length()), iconAsset);
                     }
                 }
             }
         }
 
-        public void loadBitmap(final Asset asset){
-            Log.d("loadBitmap", "loadBitmap Triggered");
-            Thread bitmapThread = new Thread(new Runnable() {
+        /**
+         * Shows the icon the phone sent under this key, looking it up among the icons kept on the
+         * watch, then those the phone has sent before, if it is not loaded yet.
+         */
+        private void showIcon(final String iconKey) {
+            mIconKey = iconKey;
+            // Only the icon shown now is worth looking up
+            if (mIconLookup != null) {
+                mIconLookup.cancel(false);
+                mIconLookup = null;
+            }
+            if (iconKey == null) {
+                iconBitmap = null;
+                return;
+            }
+            Bitmap icon;
+            synchronized (mIcons) {
+                icon = mIcons.get(iconKey);
+            }
+            iconBitmap = icon;
+            if (icon == null) {
+                mIconLookup = mIconExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isStale(iconKey)) {
+                            return;
+                        }
+                        Bitmap storedIcon = mWeatherStore.loadIcon(iconKey, ICON_SIZE);
+                        if (storedIcon != null) {
+                            publishIcon(iconKey, storedIcon);
+                            return;
+                        }
+                        Asset iconAsset = findIconAsset(iconKey);
+                        if (iconAsset != null) {
+                            loadIconFromAsset(iconKey, iconAsset);
+                        }
+                    }
+                });
+            }
+        }
+
+        public void loadIcon(final String iconKey, final Asset asset){
+            Log.d("loadIcon", "loadIcon Triggered");
+            if (asset == null) {
+                return;
+            }
+            mIconExecutor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    Bitmap largeIcon = loadBitmapFromAsset(asset);
-                    iconBitmap = Bitmap.createScaledBitmap(largeIcon, 40, 40, true);
+                    loadIconFromAsset(iconKey, asset);
                 }
             });
-            bitmapThread.start();
         }
 
-        public Bitmap loadBitmapFromAsset(Asset asset) {
-            Log.d("loadBitmapFromAsset", "loadBitmapFromAsset Triggered");
+        /**
+         * @return whether the icon under this key is no longer the one to show
+         */
+        private boolean isStale(String iconKey) {
+            return !iconKey.equals(mIconKey);
+        }
+
+        /**
+         * Hands an icon decoded on the icon thread to the engine's thread, which keeps it and
+         * draws it if it is still the one to show.
+         */
+        private void publishIcon(final String iconKey, final Bitmap icon) {
+            mUpdateTimeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mDestroyed) {
+                        storeIcon(iconKey, icon);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Keeps an icon and shows it if it is the one to show. Only call it on the engine's
+         * thread.
+         */
+        private void storeIcon(String iconKey, Bitmap icon) {
+            synchronized (mIcons) {
+                mIcons.put(iconKey, icon);
+            }
+            if (!isStale(iconKey)) {
+                iconBitmap = icon;
+                invalidateStaticLayer();
+                invalidate();
+            }
+        }
+
+        /**
+         * @return the icon the phone sent under this key, or null if it has not sent one
+         */
+        private Asset findIconAsset(String iconKey) {
+            if (!mGoogleApiClient.isConnected()) {
+                // onConnected looks again
+                return null;
+            }
+            Uri uri = new Uri.Builder()
+                    .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .path(getString(R.string.Icon_Path) + "/" + iconKey)
+                    .build();
+            DataItemBuffer dataItems = Wearable.DataApi.getDataItems(mGoogleApiClient, uri)
+                    .await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            try {
+                for (DataItem dataItem : dataItems) {
+                    Asset asset = DataMapItem.fromDataItem(dataItem).getDataMap()
+                            .getAsset(getString(R.string.Icon_Asset_Key));
+                    if (asset != null) {
+                        return asset;
+                    }
+                }
+                Log.w("findIconAsset", "No icon for " + iconKey);
+                return null;
+            } finally {
+                dataItems.release();
+            }
+        }
+
+        /**
+         * Reads an icon the phone sent and keeps it on the watch. It is only decoded if it is the
+         * one to show; otherwise it is decoded from the kept copy when it is shown.
+         */
+        private void loadIconFromAsset(String iconKey, Asset asset) {
+            byte[] bytes = readAsset(asset);
+            if (bytes == null) {
+                return;
+            }
+            mWeatherStore.saveIcon(iconKey, bytes);
+            if (isStale(iconKey)) {
+                // An icon sent again replaces the one loaded before
+                synchronized (mIcons) {
+                    mIcons.remove(iconKey);
+                }
+                return;
+            }
+            Bitmap icon = IconDecoder.decode(bytes, ICON_SIZE);
+            if (icon != null) {
+                publishIcon(iconKey, icon);
+            }
+        }
+
+        private byte[] readAsset(Asset asset) {
+            Log.d("readAsset", "readAsset Triggered");
             if (asset == null) {
                 throw new IllegalArgumentException("Asset must be non-null");
             }
-            ConnectionResult result =
-                    mGoogleApiClient.blockingConnect(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-            if (!result.isSuccess()) {
+            // The client is shared with the data listener and is only connected while the face is
+            // visible; connecting it from here would keep it connected once the face is hidden
+            if (!mGoogleApiClient.isConnected()) {
                 return null;
             }
             // convert asset into a file descriptor and block until it's ready
-            InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
-                    mGoogleApiClient, asset).await().getInputStream();
-            mGoogleApiClient.disconnect();
+            DataApi.GetFdForAssetResult fdResult = Wearable.DataApi.getFdForAsset(
+                    mGoogleApiClient, asset).await(ASSET_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!fdResult.getStatus().isSuccess()) {
+                Log.w("readAsset", "Could not open the Asset: " + fdResult.getStatus());
+                return null;
+            }
+            InputStream assetInputStream = fdResult.getInputStream();
 
             if (assetInputStream == null) {
-                Log.w("loadBitmapFromAsset", "Requested an unknown Asset.");
+                Log.w("readAsset", "Requested an unknown Asset.");
                 return null;
             }
-            // decode the stream into a bitmap
-            return BitmapFactory.decodeStream(assetInputStream);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            try {
+                int count;
+                while ((count = assetInputStream.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, count);
+                }
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                Log.w("readAsset", "Could not read the Asset.", e);
+                return null;
+            } finally {
+                try {
+                    assetInputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
 
 
@@ -449,6 +733,27 @@ public class DigitalWatchFace extends CanvasWatchFaceService {
             Log.d("onConnected", "onConnected triggered");
             Wearable.DataApi.addListener(mGoogleApiClient, this);
 
+            if (!mWeatherStore.isFresh(System.currentTimeMillis())) {
+                requestWeather();
+            }
+            // An icon not kept on the watch could not be looked up while disconnected
+            if (mIconKey != null && iconBitmap == null) {
+                showIcon(mIconKey);
+            }
+        }
+
+        /**
+         * Asks the phone for the weather, unless it was asked only a little while ago and may
+         * still be answering.
+         */
+        private void requestWeather() {
+            long nowMs = SystemClock.elapsedRealtime();
+            if (mWeatherRequested && nowMs - mWeatherRequestedMs < WEATHER_REQUEST_RETRY_MS) {
+                return;
+            }
+            mWeatherRequested = true;
+            mWeatherRequestedMs = nowMs;
+            sendAppMessage();
         }
 
         private void sendAppMessage() {
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes weather icons straight to the size they are drawn at.
+ *
+ * The bounds are read first. The icon is then subsampled by the largest power of two that keeps
+ * it at least that size, and the decoder scales what is left the rest of the way, so no full
+ * size bitmap is ever made.
+ */
+class IconDecoder {
+
+    private IconDecoder() {
+    }
+
+    /**
+     * @param size the width and height to decode to; an icon that is not square fits inside it
+     * @return the icon, or null if the bytes are not an image
+     */
+    static Bitmap decode(byte[] bytes, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        int longest = Math.max(options.outWidth, options.outHeight);
+        if (longest <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(longest, size);
+        int sampled = longest / options.inSampleSize;
+        if (sampled != size) {
+            // The decoder scales by inTargetDensity / inDensity
+            options.inScaled = true;
+            options.inDensity = sampled;
+            options.inTargetDensity = size;
+        }
+        Bitmap icon = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (icon != null) {
+            // Otherwise a canvas would scale it again, by the density it was decoded with
+            icon.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return icon;
+    }
+
+    /**
+     * @return the largest power of two that subsamples the length to no less than the size
+     */
+    static int getSampleSize(int length, int size) {
+        int sampleSize = 1;
+        while (length / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sunshine.app;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Lays out the time glyph by glyph and works out which part of the face changed since the last
+ * frame, so that most seconds only the blinking colon does.
+ *
+ * Glyph advances are measured once, in {@link #measure(Paint)}, whenever the text size changes.
+ * Each glyph is then drawn on its own at the position worked out from them, so what is drawn
+ * matches the regions found to have changed exactly. Nothing here allocates after measuring.
+ *
+ * For profiling, it keeps count of the frames, the pixels drawn for them and the pixels that
+ * actually changed over the last full second. The surface is drawn in full every frame, so the
+ * pixels drawn include the whole of it.
+ */
+class TimeGlyphs {
+
+    // The characters the time is made of, as formatted by WatchFaceText
+    private static final String GLYPHS = "0123456789:";
+    // Takes up the colon's room when the colon blinks off, so the minutes do not shift
+    private static final char NO_COLON = ' ';
+    private static final long SECOND_MILLIS = 1000;
+
+    private final float[] mAdvances = new float[GLYPHS.length()];
+    private int mTop;
+    private int mBottom;
+    // Room left on each side for glyphs that paint a little beyond their advance
+    private int mSlop;
+
+    // What was last drawn, glyph by glyph
+    private final char[] mDrawnChars = new char[8];
+    private final float[] mDrawnX = new float[8];
+    private int mDrawnLength;
+    private float mDrawnY;
+    private boolean mInvalid = true;
+
+    private long mWindowStartMillis = -1;
+    private int mWindowFrames;
+    private long mWindowPixels;
+    private long mWindowChangedPixels;
+    private int mFramesPerSecond;
+    private long mPixelsPerSecond;
+    private long mChangedPixelsPerSecond;
+
+    /**
+     * Measures the glyphs in the paint's current typeface and text size.
+     */
+    void measure(Paint paint) {
+        paint.getTextWidths(GLYPHS, mAdvances);
+        Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+        mTop = metrics.top;
+        mBottom = metrics.bottom;
+        mSlop = (int) Math.ceil(paint.getTextSize() / 8);
+        invalidate();
+    }
+
+    /**
+     * Has the whole time redrawn next, as after the face behind it was drawn again.
+     */
+    void invalidate() {
+        mInvalid = true;
+    }
+
+    /**
+     * Works out the region that changes for the time to read as given, and takes the time as
+     * drawn.
+     *
+     * @param dirty set to the region that changed
+     * @return false if nothing changed
+     */
+    boolean findDirtyRegion(char[] chars, int length, float x, float y, Rect dirty) {
+        boolean moved = mDrawnLength > 0 && y != mDrawnY;
+        boolean all = mInvalid || moved;
+        float left = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float glyphX = x;
+        int count = Math.max(length, mDrawnLength);
+        for (int i = 0; i < count; i++) {
+            boolean drawn = i < mDrawnLength;
+            boolean shown = i < length;
+            if (all || !drawn || !shown || chars[i] != mDrawnChars[i] || glyphX != mDrawnX[i]) {
+                // Both where the glyph was and where it is now
+                if (drawn) {
+                    left = Math.min(left, mDrawnX[i]);
+                    right = Math.max(right, mDrawnX[i] + getAdvance(mDrawnChars[i]));
+                }
+                if (shown) {
+                    left = Math.min(left, glyphX);
+                    right = Math.max(right, glyphX + getAdvance(chars[i]));
+                }
+            }
+            if (shown) {
+                mDrawnChars[i] = chars[i];
+                mDrawnX[i] = glyphX;
+                glyphX += getAdvance(chars[i]);
+            }
+        }
+
+        int dirtyLeft = (int) Math.floor(left) - mSlop;
+        int dirtyRight = (int) Math.ceil(right) + mSlop;
+        if (left <= right) {
+            dirty.set(dirtyLeft, (int) Math.floor(y) + mTop, dirtyRight, (int) Math.ceil(y) + mBottom);
+            if (moved) {
+                // Clear the time where it was as well as where it is now
+                dirty.union(dirtyLeft, (int) Math.floor(mDrawnY) + mTop,
+                        dirtyRight, (int) Math.ceil(mDrawnY) + mBottom);
+            }
+        }
+        mDrawnLength = length;
+        mDrawnY = y;
+        if (left > right) {
+            return false;
+        }
+        mInvalid = false;
+        return true;
+    }
+
+    /**
+     * Draws the time as last passed to {@link #findDirtyRegion}, one glyph at a time.
+     */
+    void draw(Canvas canvas, Paint paint) {
+        for (int i = 0; i < mDrawnLength; i++) {
+            canvas.drawText(mDrawnChars, i, 1, mDrawnX[i], mDrawnY, paint);
+        }
+    }
+
+    /**
+     * Counts a frame towards the figures for the current second.
+     *
+     * @param drawn the region drawn for the frame, which for a surface is the whole of it
+     * @param changed the region that changed in it, or null if nothing did
+     */
+    void recordFrame(Rect drawn, Rect changed, long nowMillis) {
+        if (mWindowStartMillis < 0) {
+            mWindowStartMillis = nowMillis;
+        }
+        long elapsed = nowMillis - mWindowStartMillis;
+        if (elapsed >= SECOND_MILLIS) {
+            mFramesPerSecond = (int) (mWindowFrames * SECOND_MILLIS / elapsed);
+            mPixelsPerSecond = mWindowPixels * SECOND_MILLIS / elapsed;
+            mChangedPixelsPerSecond = mWindowChangedPixels * SECOND_MILLIS / elapsed;
+            mWindowStartMillis = nowMillis;
+            mWindowFrames = 0;
+            mWindowPixels = 0;
+            mWindowChangedPixels = 0;
+        }
+        mWindowFrames++;
+        mWindowPixels += (long) drawn.width() * drawn.height();
+        if (changed != null) {
+            mWindowChangedPixels += (long) changed.width() * changed.height();
+        }
+    }
+
+    /**
+     * @return how many frames were drawn a second, over the last full second counted
+     */
+    int getFramesPerSecond() {
+        return mFramesPerSecond;
+    }
+
+    /**
+     * @return how many pixels were drawn a second, over the last full second counted
+     */
+    long getPixelsPerSecond() {
+        return mPixelsPerSecond;
+    }
+
+    /**
+     * @return how many of the pixels drawn a second had changed, over the last full second counted
+     */
+    long getChangedPixelsPerSecond() {
+        return mChangedPixelsPerSecond;
+    }
+
+    private float getAdvance(char c) {
+        int index = GLYPHS.indexOf(c == NO_COLON ? ':' : c);
+        return index >= 0 ? mAdvances[index] : 0;
+    }
+}
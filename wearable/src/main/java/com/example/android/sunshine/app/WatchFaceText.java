@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sunshine.app;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time and date the watch face draws, worked out for each frame without allocating.
+ *
+ * The time is formatted as H:MM into a buffer that is reused for every frame, and drawn straight
+ * from it. The date is only formatted again when the day changes. The time zone is held rather
+ * than looked up each time, so call {@link #setTimeZone(TimeZone)} when it changes.
+ */
+class WatchFaceText {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final char COLON = ':';
+    // Stands in for the colon when it blinks off, so the minutes stay put
+    private static final char NO_COLON = ' ';
+
+    // Long enough for 23:59
+    private final char[] mTime = new char[5];
+    private final SimpleDateFormat mDateFormat;
+    private TimeZone mTimeZone;
+
+    private int mHour;
+    private int mMinute;
+    private int mSecond;
+    private long mDay = Long.MIN_VALUE;
+    private String mDate;
+
+    /**
+     * @param datePattern the {@link SimpleDateFormat} pattern for the date
+     */
+    WatchFaceText(String datePattern, TimeZone timeZone) {
+        mDateFormat = new SimpleDateFormat(datePattern, Locale.getDefault());
+        setTimeZone(timeZone);
+    }
+
+    void setTimeZone(TimeZone timeZone) {
+        mTimeZone = timeZone;
+        mDateFormat.setTimeZone(timeZone);
+        // The day may have changed with it
+        mDay = Long.MIN_VALUE;
+    }
+
+    /**
+     * Moves the clock to a time, formatting the date if the day has changed.
+     */
+    void setTime(long millis) {
+        long localMillis = millis + mTimeZone.getOffset(millis);
+        long day = localMillis / DAY_MILLIS;
+        long millisOfDay = localMillis % DAY_MILLIS;
+        if (millisOfDay < 0) {
+            // Before 1970, where division rounds the wrong way
+            day--;
+            millisOfDay += DAY_MILLIS;
+        }
+        int secondOfDay = (int) (millisOfDay / 1000);
+        mHour = secondOfDay / 3600;
+        mMinute = secondOfDay / 60 % 60;
+        mSecond = secondOfDay % 60;
+
+        if (day != mDay) {
+            mDay = day;
+            mDate = mDateFormat.format(new Date(millis));
+        }
+    }
+
+    int getHour() {
+        return mHour;
+    }
+
+    int getMinute() {
+        return mMinute;
+    }
+
+    int getSecond() {
+        return mSecond;
+    }
+
+    String getDate() {
+        return mDate;
+    }
+
+    /**
+     * Formats the time into {@link #getTimeChars()}.
+     *
+     * @param colon false to leave a blank where the colon goes
+     * @return how many characters of the buffer the time takes
+     */
+    int formatTime(boolean colon) {
+        int length = 0;
+        if (mHour >= 10) {
+            mTime[length++] = (char) ('0' + mHour / 10);
+        }
+        mTime[length++] = (char) ('0' + mHour % 10);
+        mTime[length++] = colon ? COLON : NO_COLON;
+        mTime[length++] = (char) ('0' + mMinute / 10);
+        mTime[length++] = (char) ('0' + mMinute % 10);
+        return length;
+    }
+
+    /**
+     * @return the buffer the time is formatted into; it is overwritten by each call to
+     * {@link #formatTime(boolean)}
+     */
+    char[] getTimeChars() {
+        return mTime;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The last weather the phone sent, kept on the watch so the face can show it as soon as it is
+ * created instead of waiting on the phone.
+ *
+ * The temperatures, icon key, the time the weather was sent and how long it stays fresh go in
+ * shared preferences. Icons are kept as the bytes the phone encoded them as, one file per key,
+ * so each is only fetched from the data layer once.
+ */
+class WeatherStore {
+
+    private static final String LOG_TAG = WeatherStore.class.getSimpleName();
+
+    /**
+     * How long the weather is shown without asking the phone for more, when the phone did not
+     * say. The phone sends how long until its next sync is due, which moves between one and
+     * twelve hours with how often the weather changes and the time of day.
+     */
+    static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(3);
+
+    private static final String PREFS_NAME = "weather";
+    private static final String TEMP_HIGH_KEY = "temp-high";
+    private static final String TEMP_LOW_KEY = "temp-low";
+    private static final String ICON_KEY = "icon";
+    private static final String TIME_KEY = "time";
+    private static final String MAX_AGE_KEY = "max-age";
+    private static final String ICON_DIR = "icons";
+
+    private final SharedPreferences mPrefs;
+    private final File mIconDir;
+
+    WeatherStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mIconDir = new File(context.getFilesDir(), ICON_DIR);
+    }
+
+    String getTempHigh() {
+        return mPrefs.getString(TEMP_HIGH_KEY, null);
+    }
+
+    String getTempLow() {
+        return mPrefs.getString(TEMP_LOW_KEY, null);
+    }
+
+    /**
+     * @return the key of the icon for the weather, or null if it has none
+     */
+    String getIconKey() {
+        return mPrefs.getString(ICON_KEY, null);
+    }
+
+    /**
+     * @return when the weather was sent, or 0 if none has been
+     */
+    long getTimeMillis() {
+        return mPrefs.getLong(TIME_KEY, 0);
+    }
+
+    /**
+     * @return how long after it was sent the weather can be shown without asking for more
+     */
+    long getMaxAgeMillis() {
+        return mPrefs.getLong(MAX_AGE_KEY, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @return whether the weather was sent recently enough to show without asking for more
+     */
+    boolean isFresh(long nowMillis) {
+        long age = nowMillis - getTimeMillis();
+        // A clock set back leaves the age negative, and the weather is asked for again then too
+        return age >= 0 && age < getMaxAgeMillis();
+    }
+
+    /**
+     * Keeps the weather the phone sent, in the background.
+     *
+     * @param iconKey the key of the icon for the weather, or null if it has none
+     * @param maxAgeMillis how long after it was sent the weather can be shown without asking
+     *                     for more; the phone's next sync is due by then
+     */
+    void save(String tempHigh, String tempLow, String iconKey, long timeMillis,
+              long maxAgeMillis) {
+        mPrefs.edit()
+                .putString(TEMP_HIGH_KEY, tempHigh)
+                .putString(TEMP_LOW_KEY, tempLow)
+                .putString(ICON_KEY, iconKey)
+                .putLong(TIME_KEY, timeMillis)
+                .putLong(MAX_AGE_KEY, maxAgeMillis)
+                .apply();
+    }
+
+    /**
+     * Keeps an icon as encoded by the phone, replacing any kept under the same key. Does I/O, so
+     * call it off the UI thread.
+     */
+    void saveIcon(String iconKey, byte[] bytes) {
+        if (!mIconDir.isDirectory() && !mIconDir.mkdirs()) {
+            Log.w(LOG_TAG, "Could not create " + mIconDir);
+            return;
+        }
+        // Written aside and renamed, so a half written icon is never read
+        File file = getIconFile(iconKey);
+        File partFile = new File(mIconDir, iconKey + ".part");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(partFile);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Could not rename " + partFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not keep the " + iconKey + " icon", e);
+            partFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the icon kept under this key. Does I/O, so call it off the UI thread unless it is
+     * needed for the first frame.
+     *
+     * @param size the width and height to decode the icon to
+     * @return the icon, or null if none is kept under the key
+     */
+    Bitmap loadIcon(String iconKey, int size) {
+        File file = getIconFile(iconKey);
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count == -1) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += count;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the " + iconKey + " icon", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return IconDecoder.decode(bytes, size);
+    }
+
+    /**
+     * Forgets the weather and the icons.
+     */
+    void clear() {
+        mPrefs.edit().clear().apply();
+        File[] files = mIconDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getIconFile(String iconKey) {
+        return new File(mIconDir, iconKey);
+    }
+}